@@ -0,0 +1,50 @@
+package expressivo;
+
+/**
+ * Minimal timing harness for the benchmarks in this folder.
+ *
+ * Each measurement runs the body a few times untimed so HotSpot can compile it, then reports
+ * the best of several timed rounds. Results are consumed through a volatile sink so the JIT
+ * cannot discard the work.
+ */
+class Bench {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int TIMED_ROUNDS = 5;
+
+    /** written by every measured body so its result stays live */
+    static volatile Object sink;
+
+    /**
+     * A unit of work to time; returns something derived from the work done.
+     */
+    interface Body {
+        Object run();
+    }
+
+    private Bench() {
+        // not instantiable
+    }
+
+    /**
+     * Time body and print one result line.
+     * @param name label for the result line
+     * @param opsPerRun number of operations one call to body performs
+     * @param body the work to time
+     * @return best observed nanoseconds per operation
+     */
+    static double measure(String name, long opsPerRun, Body body) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            sink = body.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < TIMED_ROUNDS; i++) {
+            long start = System.nanoTime();
+            sink = body.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        double nsPerOp = (double) best / opsPerRun;
+        System.out.println(String.format("%-48s %14.1f ns/op", name, nsPerOp));
+        return nsPerOp;
+    }
+}
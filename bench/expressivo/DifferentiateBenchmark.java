@@ -0,0 +1,40 @@
+package expressivo;
+
+/**
+ * Compares tree-based differentiation (sum and product rules) with term-by-term
+ * differentiation of the Polynomial normal form on high-degree inputs, end to end through
+ * Commands.differentiate including parsing and printing.
+ */
+public class DifferentiateBenchmark {
+
+    private static final int[] DEGREES = {10, 50, 200};
+
+    public static void main(String[] args) {
+        for (int degree : DEGREES) {
+            final String power = power("x", degree);
+            final String product = "(" + power + "+3*y)*(x+1)";
+            for (Commands.Differentiation method : Commands.Differentiation.values()) {
+                Bench.measure("d/dx x^" + degree + ", " + method, 1, () -> {
+                    return Commands.differentiate(power, "x", method);
+                });
+                Bench.measure("d/dx (x^" + degree + "+3y)(x+1), " + method, 1, () -> {
+                    return Commands.differentiate(product, "x", method);
+                });
+            }
+            System.out.println(String.format("%-48s %14d chars symbolic, %d chars polynomial", "  result size",
+                    Commands.differentiate(product, "x", Commands.Differentiation.SYMBOLIC).length(),
+                    Commands.differentiate(product, "x", Commands.Differentiation.POLYNOMIAL).length()));
+        }
+    }
+
+    /**
+     * @return variable multiplied by itself degree times, as input text
+     */
+    static String power(String variable, int degree) {
+        StringBuilder power = new StringBuilder(variable);
+        for (int i = 1; i < degree; i++) {
+            power.append('*').append(variable);
+        }
+        return power.toString();
+    }
+}
@@ -0,0 +1,87 @@
+package expressivo;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares Environment with HashMap<String, Double> for the work simplify() and the evaluators
+ * do with an environment: binding a row of values, looking values up, and simplifying.
+ */
+public class EnvironmentBenchmark {
+
+    private static final String[] NAMES = {"x", "y", "z", "w", "u", "v", "s", "t"};
+    private static final String EXPRESSION = "x*x*y+3*x*y*y+(x+1)*(y+2)*(x+y)+0.5*x+7";
+    private static final int ROWS = 100000;
+
+    public static void main(String[] args) {
+        final int[] ids = new int[NAMES.length];
+        for (int i = 0; i < NAMES.length; i++) {
+            ids[i] = SymbolTable.id(NAMES[i]);
+        }
+
+        final Map<String, Double> map = new HashMap<>();
+        Bench.measure("HashMap bind 8 variables", ROWS, () -> {
+            for (int r = 0; r < ROWS; r++) {
+                for (int i = 0; i < NAMES.length; i++) {
+                    map.put(NAMES[i], r + i * 0.5);
+                }
+            }
+            return map;
+        });
+        final Environment environment = new Environment();
+        Bench.measure("Environment bind 8 variables", ROWS, () -> {
+            for (int r = 0; r < ROWS; r++) {
+                for (int i = 0; i < NAMES.length; i++) {
+                    environment.bind(ids[i], r + i * 0.5);
+                }
+            }
+            return environment;
+        });
+
+        Bench.measure("HashMap lookup 8 variables", ROWS, () -> {
+            double total = 0;
+            for (int r = 0; r < ROWS; r++) {
+                for (String name : NAMES) {
+                    total += map.get(name);
+                }
+            }
+            return total;
+        });
+        Bench.measure("Environment lookup 8 variables", ROWS, () -> {
+            double total = 0;
+            for (int r = 0; r < ROWS; r++) {
+                for (int id : ids) {
+                    total += environment.get(id);
+                }
+            }
+            return total;
+        });
+
+        // simplify every row from scratch, so the numbers compare the environments and not
+        // the result cache
+        ResultCache.shared().setMaximumSize(0);
+        final Expression expression = Expression.parse(EXPRESSION);
+        final int x = SymbolTable.id("x");
+        final int y = SymbolTable.id("y");
+        Bench.measure("simplify(Map) per row", ROWS, () -> {
+            double total = 0;
+            Map<String, Double> row = new HashMap<>();
+            for (int r = 0; r < ROWS; r++) {
+                row.put("x", r * 0.001);
+                row.put("y", 1.0 + r % 7);
+                total += expression.simplify(row).getValue();
+            }
+            return total;
+        });
+        Bench.measure("simplify(Environment) per row", ROWS, () -> {
+            double total = 0;
+            Environment row = new Environment();
+            for (int r = 0; r < ROWS; r++) {
+                row.bind(x, r * 0.001);
+                row.bind(y, 1.0 + r % 7);
+                total += expression.simplify(row).getValue();
+            }
+            return total;
+        });
+    }
+}
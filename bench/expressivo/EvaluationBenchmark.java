@@ -0,0 +1,68 @@
+package expressivo;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares the ways of evaluating one expression against many bindings: simplify() with a map
+ * per binding, the CompiledExpression interpreter, and the class generated by BytecodeCompiler.
+ */
+public class EvaluationBenchmark {
+
+    private static final String EXPRESSION = "x*x*y+3*x*y*y+(x+1)*(y+2)*(x+y)+0.5*x+7";
+    private static final int ROWS = 100000;
+
+    public static void main(String[] args) {
+        final Expression expression = Expression.parse(EXPRESSION);
+        final CompiledExpression compiled = CompiledExpression.compile(expression);
+        final ExpressionFunction function = compiled.function();
+        final double[][] rows = new double[ROWS][];
+        for (int i = 0; i < ROWS; i++) {
+            rows[i] = new double[] {i * 0.001, 1.0 + i % 7};
+        }
+
+        Bench.measure("simplify(Map) per row", ROWS, () -> {
+            double total = 0;
+            Map<String, Double> environment = new HashMap<>();
+            for (double[] row : rows) {
+                environment.put("x", row[0]);
+                environment.put("y", row[1]);
+                total += expression.simplify(environment).getValue();
+            }
+            return total;
+        });
+        Bench.measure("CompiledExpression.evaluate per row", ROWS, () -> {
+            double total = 0;
+            for (double[] row : rows) {
+                total += compiled.evaluate(row);
+            }
+            return total;
+        });
+        Bench.measure("generated function per row", ROWS, () -> {
+            double total = 0;
+            for (double[] row : rows) {
+                total += function.evaluate(row);
+            }
+            return total;
+        });
+
+        final double[][] columns = new double[2][ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            columns[0][i] = rows[i][0];
+            columns[1][i] = rows[i][1];
+        }
+        final double[] output = new double[ROWS];
+        Bench.measure("CompiledExpression.evaluateColumns per row", ROWS, () -> {
+            compiled.evaluateColumns(columns, output);
+            return output;
+        });
+
+        final Map<String, double[]> named = new HashMap<>();
+        named.put("x", columns[0]);
+        named.put("y", columns[1]);
+        final ParallelEvaluator parallel = new ParallelEvaluator();
+        Bench.measure("ParallelEvaluator.evaluateColumns per row", ROWS, () -> {
+            return parallel.evaluateColumns(expression, named, ROWS);
+        });
+    }
+}
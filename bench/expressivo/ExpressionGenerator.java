@@ -0,0 +1,147 @@
+package expressivo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reproducible synthetic expressions for the benchmarks in this folder.
+ *
+ * The same seed, shape, size and variable count always give the same expression. Trees are
+ * built with the public constructors rather than NodeFactory, so two generated copies are equal
+ * but share no nodes, and equals() has to walk them.
+ */
+class ExpressionGenerator {
+
+    /**
+     * How operators are arranged above the leaves.
+     */
+    enum Shape {
+        /** ((((l0 o l1) o l2) o l3) ...), depth equal to the number of leaves */
+        LEFT_CHAIN,
+        /** halves split evenly at every level, depth log2 of the number of leaves */
+        BALANCED,
+        /** halves split at a random point in the middle half, depth O(log n) */
+        RANDOM
+    }
+
+    // Rep: the seed every expression is generated from, and the variable names to draw from
+    private final long seed;
+    private final List<String> names;
+
+    // Abstraction Function: Represents the family of expressions generated from seed over names
+    //
+    // Rep Invariant: names is nonempty
+    //
+    // Safety from rep exposure argument: fields are private and never handed out
+
+    /**
+     * @param seed seed for the pseudo-random choices
+     * @param variableCount number of distinct variable names leaves are drawn from, at least 1
+     */
+    ExpressionGenerator(long seed, int variableCount) {
+        this.seed = seed;
+        this.names = new ArrayList<>();
+        for (int i = 0; i < variableCount; i++) {
+            this.names.add(name(i));
+        }
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert !this.names.isEmpty();
+    }
+
+    /**
+     * @return the i'th name in the sequence a, b, ..., z, ba, bb, ...
+     */
+    private static String name(int i) {
+        StringBuilder result = new StringBuilder();
+        do {
+            result.insert(0, (char) ('a' + i % 26));
+            i /= 26;
+        } while (i > 0);
+        return result.toString();
+    }
+
+    /**
+     * @return the variable names leaves are drawn from
+     */
+    List<String> getVariables() {
+        return new ArrayList<>(this.names);
+    }
+
+    /**
+     * @param shape arrangement of the operators
+     * @param leaves number of leaves, at least 1
+     * @return a fresh expression with that many leaves, half of them variables, with + and *
+     *         chosen at random
+     */
+    Expression generate(Shape shape, int leaves) {
+        return generate(shape, leaves, 1);
+    }
+
+    /**
+     * @param shape arrangement of the operators within each segment
+     * @param leaves number of leaves, at least 1
+     * @param depth number of segments, at least 1: the leaves are split evenly into
+     *        min(depth, leaves) consecutive segments, each arranged by shape, and the segments
+     *        are joined as a left chain, so the tree is at least that many operators deep
+     *        whatever the shape
+     * @return a fresh expression with that many leaves, half of them variables, with + and *
+     *         chosen at random; the same as generate(shape, leaves) when depth is 1
+     */
+    Expression generate(Shape shape, int leaves, int depth) {
+        Random random = new Random(this.seed);
+        Expression[] leafNodes = new Expression[leaves];
+        for (int i = 0; i < leaves; i++) {
+            leafNodes[i] = random.nextBoolean()
+                    ? new Variable(this.names.get(random.nextInt(this.names.size())))
+                    : new Number(random.nextInt(4) == 0 ? random.nextInt(100) / 8.0 : random.nextInt(10));
+        }
+        int segments = Math.min(depth, leaves);
+        Expression result = null;
+        for (int s = 0; s < segments; s++) {
+            int from = (int) ((long) s * leaves / segments);
+            int to = (int) ((long) (s + 1) * leaves / segments);
+            Expression segment = arrange(random, shape, leafNodes, from, to);
+            result = result == null ? segment : operator(random, result, segment);
+        }
+        return result;
+    }
+
+    /**
+     * @return a tree over leafNodes[from, to) arranged according to shape
+     */
+    private Expression arrange(Random random, Shape shape, Expression[] leafNodes, int from, int to) {
+        if (shape == Shape.LEFT_CHAIN) {
+            Expression result = leafNodes[from];
+            for (int i = from + 1; i < to; i++) {
+                result = operator(random, result, leafNodes[i]);
+            }
+            return result;
+        }
+        return split(random, shape, leafNodes, from, to);
+    }
+
+    /**
+     * @return a tree over leafNodes[from, to), split according to shape; recursion depth stays
+     *         logarithmic for BALANCED and RANDOM
+     */
+    private Expression split(Random random, Shape shape, Expression[] leafNodes, int from, int to) {
+        int n = to - from;
+        if (n == 1) {
+            return leafNodes[from];
+        }
+        int middle = shape == Shape.BALANCED || n < 4
+                ? from + n / 2
+                : from + n / 4 + random.nextInt(n / 2);
+        Expression left = split(random, shape, leafNodes, from, middle);
+        Expression right = split(random, shape, leafNodes, middle, to);
+        return operator(random, left, right);
+    }
+
+    private static Expression operator(Random random, Expression left, Expression right) {
+        return random.nextBoolean() ? new Plus(left, right) : new Times(left, right);
+    }
+}
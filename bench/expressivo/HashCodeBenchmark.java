@@ -0,0 +1,52 @@
+package expressivo;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures HashMap lookups keyed on deep expression trees, the access pattern of memoizing
+ * results per subexpression.
+ *
+ * Every prefix of a left-leaning chain x+1*x+1*x... is used as a key, so a lookup cost that
+ * grows with tree depth shows up as a per-lookup time that grows with the chain length.
+ */
+public class HashCodeBenchmark {
+
+    private static final int[] DEPTHS = {10, 100, 1000, 4000};
+    private static final int LOOKUPS = 200000;
+
+    public static void main(String[] args) {
+        for (int depth : DEPTHS) {
+            final Expression[] prefixes = chainPrefixes(depth);
+            final Map<Expression, Integer> memo = new HashMap<>();
+            for (int i = 0; i < prefixes.length; i++) {
+                memo.put(prefixes[i], i);
+            }
+            final int repeats = Math.max(1, LOOKUPS / depth);
+            Bench.measure("lookup, left chain depth " + depth, (long) repeats * depth, () -> {
+                long total = 0;
+                for (int r = 0; r < repeats; r++) {
+                    for (Expression key : prefixes) {
+                        total += memo.get(key);
+                    }
+                }
+                return total;
+            });
+        }
+    }
+
+    /**
+     * @return the depth prefixes of a left-leaning chain alternating Plus and Times nodes
+     */
+    static Expression[] chainPrefixes(int depth) {
+        Expression[] prefixes = new Expression[depth];
+        Expression current = new Variable("x");
+        for (int i = 0; i < depth; i++) {
+            current = (i % 2 == 0)
+                    ? new Plus(current, new Number(i))
+                    : new Times(current, new Variable("x"));
+            prefixes[i] = current;
+        }
+        return prefixes;
+    }
+}
@@ -0,0 +1,170 @@
+package expressivo;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks of every public operation on Expression and Commands over a grid of synthetic
+ * inputs: shape (left chain, balanced, random), size in leaves, depth (number of segments
+ * chained from the left, see ExpressionGenerator) and number of distinct variables.
+ *
+ * Inputs come from ExpressionGenerator with a fixed seed, so runs are comparable across
+ * changes. The result cache is disabled so simplify and differentiate are measured doing their
+ * work rather than a lookup. Build with mvn package, then for example
+ *
+ *   java -jar jmh/target/benchmarks.jar OperationBenchmark
+ *   java -jar jmh/target/benchmarks.jar OperationBenchmark.differentiate -p shape=RANDOM -p size=1000
+ *
+ * The grammar-based parser behind Expression.parse and the String commands is far slower than
+ * the rest and recurses once per nesting level, so those benchmarks take GrammarInputs, whose
+ * sizes stop at 1000 and which keep left chains to at most 100 leaves.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class OperationBenchmark {
+
+    private static final long SEED = 6005;
+
+    /**
+     * One generated expression, an equal copy sharing no nodes, its text, and an environment
+     * binding every variable.
+     */
+    static class Input {
+
+        Expression expression;
+        Expression copy;
+        String text;
+        String variable;
+        Variable v;
+        Map<String, Double> environment;
+
+        void generate(ExpressionGenerator.Shape shape, int size, int depth, int variables) {
+            ResultCache.shared().setMaximumSize(0);
+            ExpressionGenerator generator = new ExpressionGenerator(SEED, variables);
+            this.expression = generator.generate(shape, size, depth);
+            this.copy = generator.generate(shape, size, depth);
+            this.text = this.expression.toString();
+            this.variable = generator.getVariables().get(0);
+            this.v = new Variable(this.variable);
+            this.environment = new HashMap<>();
+            for (String name : generator.getVariables()) {
+                this.environment.put(name, 1.5);
+            }
+        }
+    }
+
+    /**
+     * Inputs for the operations that do not go through the grammar.
+     */
+    @State(Scope.Benchmark)
+    public static class Inputs extends Input {
+
+        @Param({"LEFT_CHAIN", "BALANCED", "RANDOM"})
+        public String shape;
+
+        @Param({"100", "10000"})
+        public int size;
+
+        @Param({"1", "64"})
+        public int depth;
+
+        @Param({"1", "8"})
+        public int variables;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            generate(ExpressionGenerator.Shape.valueOf(this.shape), this.size, this.depth, this.variables);
+        }
+    }
+
+    /**
+     * Inputs small enough for the recursive grammar-based parser.
+     */
+    @State(Scope.Benchmark)
+    public static class GrammarInputs extends Input {
+
+        @Param({"BALANCED", "RANDOM", "LEFT_CHAIN"})
+        public String shape;
+
+        @Param({"10", "100", "1000"})
+        public int size;
+
+        @Param({"1", "64"})
+        public int depth;
+
+        @Param({"1", "8"})
+        public int variables;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            // a left chain nests once per leaf, which the grammar parser cannot go deep enough for
+            ExpressionGenerator.Shape shape = ExpressionGenerator.Shape.valueOf(this.shape);
+            int leaves = shape == ExpressionGenerator.Shape.LEFT_CHAIN ? Math.min(this.size, 100) : this.size;
+            generate(shape, leaves, this.depth, this.variables);
+        }
+    }
+
+    @Benchmark
+    public void parse(GrammarInputs in, Blackhole blackhole) {
+        blackhole.consume(Expression.parse(in.text));
+    }
+
+    @Benchmark
+    public void directParse(Inputs in, Blackhole blackhole) {
+        blackhole.consume(DirectParser.parse(in.text));
+    }
+
+    @Benchmark
+    public void toString(Inputs in, Blackhole blackhole) {
+        blackhole.consume(in.expression.toString());
+    }
+
+    @Benchmark
+    public void equals(Inputs in, Blackhole blackhole) {
+        blackhole.consume(in.expression.equals(in.copy));
+    }
+
+    /** operator nodes cache their hash, so this measures the cached read */
+    @Benchmark
+    public void hashCode(Inputs in, Blackhole blackhole) {
+        blackhole.consume(in.copy.hashCode());
+    }
+
+    @Benchmark
+    public void simplify(Inputs in, Blackhole blackhole) {
+        blackhole.consume(in.expression.simplify(in.environment));
+    }
+
+    @Benchmark
+    public void differentiate(Inputs in, Blackhole blackhole) {
+        blackhole.consume(in.expression.differentiate(in.v));
+    }
+
+    @Benchmark
+    public void commandsSimplify(GrammarInputs in, Blackhole blackhole) {
+        blackhole.consume(Commands.simplify(in.text, in.environment));
+    }
+
+    @Benchmark
+    public void commandsDifferentiate(GrammarInputs in, Blackhole blackhole) {
+        blackhole.consume(Commands.differentiate(in.text, in.variable));
+    }
+}
@@ -0,0 +1,132 @@
+package expressivo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import expressivo.Expression.ExpressionGrammar;
+import lib6005.parser.ParseTree;
+
+/**
+ * Converts a ParseTree built by the grammar in Expression.g to an Expression without
+ * recursion, so deeply parenthesized input cannot overflow the call stack.
+ */
+class AstBuilder {
+
+    private AstBuilder() {
+        // not instantiable
+    }
+
+    /**
+     * A parse tree node waiting for the ASTs of the children its own AST is built from.
+     */
+    private static class Frame {
+
+        final ParseTree<ExpressionGrammar> node;
+        final List<ParseTree<ExpressionGrammar>> children;
+        final List<Expression> results;
+
+        Frame(ParseTree<ExpressionGrammar> node) {
+            this.node = node;
+            this.children = children(node);
+            this.results = new ArrayList<>(this.children.size());
+        }
+    }
+
+    /**
+     * @param p ParseTree<ExpressionGrammar> that is assumed to have been constructed by the
+     *          grammar in Expression.g
+     * @return an Abstract Syntax Tree representing the parsed grammar
+     */
+    static Expression build(ParseTree<ExpressionGrammar> p) {
+        Deque<Frame> stack = new ArrayDeque<>();
+        stack.push(new Frame(p));
+        while (true) {
+            Frame frame = stack.peek();
+            if (frame.results.size() < frame.children.size()) {
+                stack.push(new Frame(frame.children.get(frame.results.size())));
+                continue;
+            }
+            stack.pop();
+            Expression result = combine(frame.node, frame.results);
+            if (stack.isEmpty()) {
+                return result;
+            }
+            stack.peek().results.add(result);
+        }
+    }
+
+    /**
+     * @return the children of p whose ASTs p's AST is built from, in order
+     */
+    private static List<ParseTree<ExpressionGrammar>> children(ParseTree<ExpressionGrammar> p) {
+        switch (p.getName()) {
+        case NUMBER:
+        case VARIABLE:
+            /*
+             * Terminals are built from their contents alone.
+             */
+            return Collections.emptyList();
+        case FACTOR:
+            /*
+             * A factor will have either a number, variable or sum as child (in addition to some
+             * whitespace)
+             */
+            if (!p.childrenByName(ExpressionGrammar.NUMBER).isEmpty()) {
+                return p.childrenByName(ExpressionGrammar.NUMBER).subList(0, 1);
+            } else if (!p.childrenByName(ExpressionGrammar.VARIABLE).isEmpty()) {
+                return p.childrenByName(ExpressionGrammar.VARIABLE).subList(0, 1);
+            } else {
+                return p.childrenByName(ExpressionGrammar.SUM).subList(0, 1);
+            }
+        case TIMES:
+            /*
+             * A times will have one or more children that need to be multiplied together.
+             */
+            return p.childrenByName(ExpressionGrammar.FACTOR);
+        case SUM:
+            return p.childrenByName(ExpressionGrammar.TIMES);
+        case ROOT:
+            /*
+             * The root has a single sum child, in addition to potentially some whitespace.
+             */
+            return p.childrenByName(ExpressionGrammar.SUM).subList(0, 1);
+        case WHITESPACE:
+            /*
+             * We are always avoiding building whitespace, so the code should never make it here.
+             */
+            throw new RuntimeException("You should never reach here:" + p);
+        }
+        throw new RuntimeException("You should never reach here:" + p);
+    }
+
+    /**
+     * @return the AST for p, given the ASTs of children(p)
+     */
+    private static Expression combine(ParseTree<ExpressionGrammar> p, List<Expression> results) {
+        switch (p.getName()) {
+        case NUMBER:
+            return NodeFactory.number(Double.parseDouble(p.getContents()));
+        case VARIABLE:
+            return NodeFactory.variable(p.getContents());
+        case FACTOR:
+        case ROOT:
+            return results.get(0);
+        case TIMES:
+            if (results.isEmpty()) {
+                throw new RuntimeException("times must have a non whitespace child:" + p);
+            }
+            return NodeFactory.product(results);
+        case SUM:
+            if (results.isEmpty()) {
+                throw new RuntimeException("sum must have a non whitespace child:" + p);
+            }
+            return NodeFactory.sum(results);
+        case WHITESPACE:
+            throw new RuntimeException("You should never reach here:" + p);
+        }
+        throw new RuntimeException("You should never reach here:" + p);
+    }
+}
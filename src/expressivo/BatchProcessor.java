@@ -0,0 +1,158 @@
+package expressivo;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs console input non-interactively: reads expressions and commands one per line, and writes
+ * the output line the console would print for each, with no prompts.
+ *
+ * Input and output go through 64K buffers and each result is appended straight to the output
+ * rather than built as a String first. Blank lines are skipped rather than ending the input.
+ *
+ * In parallel mode, lines are read in batches and each batch is cut just before every expression
+ * line, since entering an expression replaces the current expression and so does not depend on
+ * the lines before it. The pieces run on a fork-join pool and their output is written in input
+ * order, so the output is the same as in sequential mode.
+ */
+public class BatchProcessor {
+
+    /** size in chars of the input and output buffers */
+    public static final int BUFFER_SIZE = 1 << 16;
+
+    /** number of lines read before a batch is handed to the pool in parallel mode */
+    public static final int BATCH_LINES = 8192;
+
+    // Rep: the pool pieces run on, or null to run every line on the calling thread
+    private final ForkJoinPool pool;
+
+    // Abstraction Function: Represents a batch runner that is sequential if pool == null and
+    //                       otherwise runs independent pieces of its input on pool
+    //
+    // Rep Invariant: true
+    //
+    // Safety from rep exposure argument: the field is final; the pool is shared by design
+
+    /**
+     * Make a processor that handles every line in turn on the calling thread.
+     */
+    public BatchProcessor() {
+        this.pool = null;
+    }
+
+    /**
+     * @param pool the pool to run independent pieces of the input on
+     */
+    public BatchProcessor(ForkJoinPool pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException("pool must not be null");
+        }
+        this.pool = pool;
+    }
+
+    /**
+     * Carry out every line of in and write one output line per non-blank input line to out.
+     * Each output line is the result of its input line, or a description of what was wrong with
+     * it, exactly as the console prints them. out is flushed but not closed.
+     * @param in expressions, !d/d and !simplify commands, one per line
+     * @param out receives the output lines
+     * @throws IOException if in or out does
+     */
+    public void process(Reader in, Writer out) throws IOException {
+        final BufferedReader lines = new BufferedReader(in, BUFFER_SIZE);
+        final BufferedWriter writer = new BufferedWriter(out, BUFFER_SIZE);
+        if (this.pool == null) {
+            final Session session = new Session();
+            String line;
+            while ((line = lines.readLine()) != null) {
+                if (!isBlank(line)) {
+                    Main.run(session, line, writer);
+                }
+            }
+        } else {
+            final List<String> batch = new ArrayList<>(BATCH_LINES);
+            Expression current = null;
+            String line;
+            while ((line = lines.readLine()) != null) {
+                if (isBlank(line)) {
+                    continue;
+                }
+                batch.add(line);
+                if (batch.size() == BATCH_LINES) {
+                    current = processBatch(batch, current, writer);
+                    batch.clear();
+                }
+            }
+            processBatch(batch, current, writer);
+        }
+        writer.flush();
+    }
+
+    private static boolean isBlank(String line) {
+        return line.trim().isEmpty();
+    }
+
+    /**
+     * Run a batch of lines on the pool and write their output in order.
+     * @param batch non-blank input lines
+     * @param current the current expression before the batch, or null if there is none
+     * @param out receives the output lines
+     * @return the current expression after the batch, or null if there is none
+     */
+    private Expression processBatch(List<String> batch, Expression current, Writer out) throws IOException {
+        final List<ForkJoinTask<Piece>> tasks = new ArrayList<>();
+        int start = 0;
+        for (int i = 1; i <= batch.size(); i++) {
+            if (i == batch.size() || Main.isExpression(batch.get(i))) {
+                final Piece piece = new Piece(batch.subList(start, i), start == 0 ? current : null);
+                tasks.add(this.pool.submit(piece::run));
+                start = i;
+            }
+        }
+        for (ForkJoinTask<Piece> task : tasks) {
+            Piece piece = task.join();
+            if (!piece.independent) {
+                // its leading expression did not parse, so its commands act on whatever was
+                // current before it: run it again now that that is known
+                piece = new Piece(piece.lines, current).run();
+            }
+            out.append(piece.output);
+            current = piece.session.hasCurrent() ? piece.session.current() : null;
+        }
+        return current;
+    }
+
+    /**
+     * Lines starting at an expression (or at the start of a batch), run on their own session.
+     */
+    private static final class Piece {
+
+        final List<String> lines;
+        final Session session;
+        final StringBuilder output = new StringBuilder();
+        boolean independent = true;
+
+        Piece(List<String> lines, Expression current) {
+            this.lines = lines;
+            this.session = new Session(current);
+        }
+
+        Piece run() throws IOException {
+            final boolean given = this.session.hasCurrent();
+            for (int i = 0; i < this.lines.size(); i++) {
+                Main.run(this.session, this.lines.get(i), this.output);
+                if (i == 0 && !given && !this.session.hasCurrent()) {
+                    this.independent = false;
+                }
+            }
+            return this;
+        }
+    }
+}
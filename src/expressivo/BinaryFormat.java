@@ -0,0 +1,431 @@
+package expressivo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary encoding of expressions.
+ *
+ * An encoded expression is:
+ *
+ *   version   one byte, FORMAT_VERSION
+ *   variables varint count, then for each variable a varint length and its name, one or more
+ *             ASCII letters
+ *   nodes     the expression in pre-order, each node a tag byte followed by
+ *               NUMBER     the value as 8 big-endian bytes of IEEE 754 double, finite and
+ *                          not negative
+ *               INTEGER    the value as a varint, for a whole number from 0 to 2^31-1
+ *               VARIABLE   varint index into the variable table
+ *               SUM        varint operand count (at least 2), then the operands
+ *               PRODUCT    varint operand count (at least 2), then the operands
+ *               REFERENCE  varint index of an earlier operator node, counting operator
+ *                          nodes from 0 in the order their tags appear
+ *
+ * Varints are unsigned LEB128: 7 bits per byte, least significant first, high bit set on every
+ * byte but the last. Doubles are stored exactly, so read(write(e)) equals e for every e, unlike
+ * parsing e.toString() back. An operator node that appears again in the same tree (as
+ * NodeFactory makes common in derivatives) is written once and then referred to, so the encoding
+ * grows with the number of distinct nodes, not with the printed length.
+ *
+ * Encodings are self-delimiting, so several can be written one after another to the same buffer
+ * or stream and read back in order. Reading from a ByteBuffer decodes in place from its current
+ * position, so a buffer from FileChannel.map is read without copying.
+ */
+public class BinaryFormat {
+
+    /** version byte at the start of every encoded expression */
+    public static final int FORMAT_VERSION = 1;
+
+    private static final int NUMBER = 0;
+    private static final int VARIABLE = 1;
+    private static final int SUM = 2;
+    private static final int PRODUCT = 3;
+    private static final int REFERENCE = 4;
+    private static final int INTEGER = 5;
+
+    private BinaryFormat() {
+        // not instantiable
+    }
+
+    /**
+     * @param expression any expression
+     * @return the encoding of expression
+     */
+    public static byte[] toBytes(Expression expression) {
+        return encode(expression).toByteArray();
+    }
+
+    /**
+     * Write the encoding of an expression at the buffer's position, advancing it.
+     * @param expression any expression
+     * @param buffer where to write it
+     * @throws java.nio.BufferOverflowException if buffer has too little room left, in which case
+     *         it is unchanged
+     */
+    public static void write(Expression expression, ByteBuffer buffer) {
+        Output output = encode(expression);
+        buffer.put(output.bytes, 0, output.length);
+    }
+
+    /**
+     * Write the encoding of an expression to a stream.
+     * @param expression any expression
+     * @param out where to write it; not flushed or closed
+     * @throws IOException if out does
+     */
+    public static void write(Expression expression, OutputStream out) throws IOException {
+        Output output = encode(expression);
+        out.write(output.bytes, 0, output.length);
+    }
+
+    /**
+     * Read an expression written by write() or toBytes().
+     * @param bytes an encoded expression
+     * @return the expression
+     * @throws IllegalArgumentException if bytes do not hold exactly one encoded expression
+     */
+    public static Expression fromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        Expression expression = read(buffer);
+        if (buffer.hasRemaining()) {
+            throw new IllegalArgumentException("invalid binary expression: "
+                    + buffer.remaining() + " bytes after the end");
+        }
+        return expression;
+    }
+
+    /**
+     * Read an expression starting at the buffer's position, and advance the position past it.
+     * @param buffer holds an encoded expression at its position
+     * @return the expression
+     * @throws IllegalArgumentException if the bytes at the position are not a valid encoding
+     */
+    public static Expression read(final ByteBuffer buffer) {
+        try {
+            return decode(new Input() {
+                @Override
+                int readByte() {
+                    return buffer.get() & 0xff;
+                }
+
+                @Override
+                double readDouble() {
+                    long bits = buffer.getLong();
+                    return Double.longBitsToDouble(buffer.order() == ByteOrder.BIG_ENDIAN ? bits : Long.reverseBytes(bits));
+                }
+
+                @Override
+                int remaining() {
+                    return buffer.remaining();
+                }
+            });
+        } catch (BufferUnderflowException | IOException e) {
+            throw new IllegalArgumentException("invalid binary expression: truncated");
+        }
+    }
+
+    /**
+     * Read the next expression from a stream, consuming exactly its bytes.
+     * @param in holds an encoded expression next
+     * @return the expression
+     * @throws EOFException if in ends before the expression does
+     * @throws IOException if in does
+     * @throws IllegalArgumentException if the bytes read are not a valid encoding
+     */
+    public static Expression read(final InputStream in) throws IOException {
+        return decode(new Input() {
+            @Override
+            int readByte() throws IOException {
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException("encoded expression ends early");
+                }
+                return b;
+            }
+
+            @Override
+            double readDouble() throws IOException {
+                long bits = 0;
+                for (int i = 0; i < 8; i++) {
+                    bits = (bits << 8) | readByte();
+                }
+                return Double.longBitsToDouble(bits);
+            }
+
+            @Override
+            int remaining() {
+                // unknown, so counts are checked byte by byte as they are read
+                return Integer.MAX_VALUE;
+            }
+        });
+    }
+
+    /**
+     * Growable output bytes.
+     */
+    private static final class Output {
+
+        byte[] bytes = new byte[64];
+        int length;
+
+        void write(int b) {
+            if (this.length == this.bytes.length) {
+                this.bytes = Arrays.copyOf(this.bytes, 2 * this.length);
+            }
+            this.bytes[this.length++] = (byte) b;
+        }
+
+        void writeVarint(int value) {
+            while ((value & ~0x7f) != 0) {
+                write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        void writeDouble(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                write((int) (bits >>> shift));
+            }
+        }
+
+        void writeAll(Output other) {
+            for (int i = 0; i < other.length; i++) {
+                write(other.bytes[i]);
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(this.bytes, this.length);
+        }
+    }
+
+    private static Output encode(Expression root) {
+        // nodes go out first so the variable table is complete before it is written
+        final Output nodes = new Output();
+        final Map<Integer, Integer> table = new HashMap<>();
+        final List<String> names = new ArrayList<>();
+        final Map<Expression, Integer> written = new IdentityHashMap<>();
+        final Deque<Expression> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Expression node = stack.pop();
+            if (node instanceof Number) {
+                double value = node.getValue();
+                if (value >= 0 && value <= Integer.MAX_VALUE && value == (int) value
+                        && Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(-0.0)) {
+                    // most constants, and every 0 and 1 from differentiate(), take 2 bytes
+                    nodes.write(INTEGER);
+                    nodes.writeVarint((int) value);
+                } else {
+                    nodes.write(NUMBER);
+                    nodes.writeDouble(value);
+                }
+            } else if (node instanceof Variable) {
+                Variable variable = (Variable) node;
+                Integer index = table.get(variable.getId());
+                if (index == null) {
+                    index = names.size();
+                    table.put(variable.getId(), index);
+                    names.add(variable.getName());
+                }
+                nodes.write(VARIABLE);
+                nodes.writeVarint(index);
+            } else {
+                Operator op = (Operator) node;
+                Integer earlier = written.get(op);
+                if (earlier != null) {
+                    // pre-order pops every descendant of the earlier copy before this one,
+                    // so a reader has finished building it by now
+                    nodes.write(REFERENCE);
+                    nodes.writeVarint(earlier);
+                    continue;
+                }
+                written.put(op, written.size());
+                nodes.write(op.isSum() ? SUM : PRODUCT);
+                nodes.writeVarint(op.arity());
+                for (int i = op.arity() - 1; i >= 0; i--) {
+                    stack.push(op.child(i));
+                }
+            }
+        }
+        final Output output = new Output();
+        output.write(FORMAT_VERSION);
+        output.writeVarint(names.size());
+        for (String name : names) {
+            byte[] ascii = name.getBytes(StandardCharsets.US_ASCII);
+            output.writeVarint(ascii.length);
+            for (byte b : ascii) {
+                output.write(b);
+            }
+        }
+        output.writeAll(nodes);
+        return output;
+    }
+
+    /**
+     * Where encoded bytes come from.
+     */
+    private abstract static class Input {
+
+        abstract int readByte() throws IOException;
+
+        abstract double readDouble() throws IOException;
+
+        /**
+         * @return an upper bound on the number of bytes left to read
+         */
+        abstract int remaining();
+
+        int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) {
+                        break;
+                    }
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("invalid binary expression: bad varint");
+        }
+    }
+
+    /**
+     * An operator node whose operands are still being read.
+     */
+    private static final class Frame {
+
+        final boolean sum;
+        final int slot;
+        final List<Expression> operands;
+        final int arity;
+
+        Frame(boolean sum, int slot, int arity) {
+            this.sum = sum;
+            this.slot = slot;
+            this.arity = arity;
+            this.operands = new ArrayList<>(Math.min(arity, 1024));
+        }
+    }
+
+    /**
+     * @param in input positioned at a varint
+     * @param what what the varint counts, for the error message
+     * @return the varint, which is at most in.remaining()
+     * @throws IllegalArgumentException if the count exceeds the input left
+     */
+    private static int readCount(Input in, String what) throws IOException {
+        final int count = in.readVarint();
+        if (count > in.remaining()) {
+            throw new IllegalArgumentException("invalid binary expression: " + what + " " + count
+                    + " exceeds the " + in.remaining() + " bytes left");
+        }
+        return count;
+    }
+
+    private static Expression decode(Input in) throws IOException {
+        int version = in.readByte();
+        if (version != FORMAT_VERSION) {
+            throw new IllegalArgumentException("invalid binary expression: unknown version " + version);
+        }
+        // counts are checked against the input left before anything is sized by them, so
+        // corrupt input is rejected instead of allocating without bound
+        final int count = readCount(in, "variable count");
+        final List<Variable> variables = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            final int length = readCount(in, "variable name length");
+            if (length == 0) {
+                throw new IllegalArgumentException("invalid binary expression: empty variable name");
+            }
+            final StringBuilder name = new StringBuilder(Math.min(length, 1024));
+            for (int j = 0; j < length; j++) {
+                final int c = in.readByte();
+                if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z')) {
+                    throw new IllegalArgumentException("invalid binary expression: bad variable name byte " + c);
+                }
+                name.append((char) c);
+            }
+            variables.add(NodeFactory.variable(name.toString()));
+        }
+        final List<Expression> operators = new ArrayList<>();
+        final Deque<Frame> frames = new ArrayDeque<>();
+        while (true) {
+            Expression node;
+            int tag = in.readByte();
+            switch (tag) {
+            case NUMBER: {
+                double value = in.readDouble();
+                if (!(value >= 0) || Double.isInfinite(value)) {
+                    throw new IllegalArgumentException("invalid binary expression: bad number " + value);
+                }
+                node = NodeFactory.number(value);
+                break;
+            }
+            case INTEGER:
+                node = NodeFactory.number(in.readVarint());
+                break;
+            case VARIABLE: {
+                int index = in.readVarint();
+                if (index >= variables.size()) {
+                    throw new IllegalArgumentException("invalid binary expression: no variable " + index);
+                }
+                node = variables.get(index);
+                break;
+            }
+            case SUM:
+            case PRODUCT: {
+                int arity = readCount(in, "operand count");
+                if (arity < 2) {
+                    throw new IllegalArgumentException("invalid binary expression: operator with "
+                            + arity + " operands");
+                }
+                frames.push(new Frame(tag == SUM, operators.size(), arity));
+                operators.add(null);
+                continue;
+            }
+            case REFERENCE: {
+                int index = in.readVarint();
+                if (index >= operators.size() || operators.get(index) == null) {
+                    throw new IllegalArgumentException("invalid binary expression: no operator " + index);
+                }
+                node = operators.get(index);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("invalid binary expression: unknown tag " + tag);
+            }
+            // hand the finished node to its parent, finishing every parent it completes
+            while (true) {
+                Frame parent = frames.peek();
+                if (parent == null) {
+                    return node;
+                }
+                parent.operands.add(node);
+                if (parent.operands.size() < parent.arity) {
+                    break;
+                }
+                frames.pop();
+                node = parent.sum ? NodeFactory.sum(parent.operands) : NodeFactory.product(parent.operands);
+                operators.set(parent.slot, node);
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package expressivo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates a JVM class per expression whose evaluate(double[]) method is the expression's
+ * arithmetic written out as straight-line bytecode, so HotSpot can compile and inline it like
+ * hand-written code.
+ *
+ * The generated code is a direct translation of a CompiledExpression: CONST becomes dconst or
+ * ldc2_w, LOAD becomes aload_1/index/daload, ADD and MUL become dadd and dmul. Each class is
+ * defined in its own class loader so it can be unloaded once the function is unreachable.
+ *
+ * The class files target Java 8, so this uses a plain ClassLoader.defineClass rather than
+ * Lookup.defineHiddenClass, which is only available from Java 15.
+ */
+public class BytecodeCompiler {
+
+    /**
+     * Largest evaluate() body generated. HotSpot does not JIT-compile methods over 8000 bytes
+     * of bytecode, so for larger expressions the interpreter in CompiledExpression is faster.
+     */
+    static final int MAX_METHOD_BYTES = 8000;
+
+    private static final String INTERFACE = ExpressionFunction.class.getName().replace('.', '/');
+    private static final String CLASS_PREFIX = "expressivo/GeneratedExpression$";
+    private static final AtomicLong counter = new AtomicLong();
+
+    // expression -> compiled form with its generated function; weak so entries go with their keys
+    private static final Map<Expression, CompiledExpression> cache =
+            Collections.synchronizedMap(new WeakHashMap<Expression, CompiledExpression>());
+
+    private BytecodeCompiler() {
+        // not instantiable
+    }
+
+    /**
+     * Compile an expression, generating its class on first use and reusing it afterwards.
+     * @param expression the expression to compile
+     * @return the compiled form of expression, with slots in order of first appearance and
+     *         function() already generated
+     */
+    public static CompiledExpression compile(Expression expression) {
+        CompiledExpression compiled = cache.get(expression);
+        if (compiled == null) {
+            compiled = CompiledExpression.compile(expression);
+            compiled.function();
+            cache.put(expression, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * Generate a class evaluating compiled.
+     * @param compiled the expression to translate
+     * @return a function equivalent to compiled.evaluate(), or compiled::evaluate itself if the
+     *         expression is too large to be worth generating
+     */
+    public static ExpressionFunction generate(CompiledExpression compiled) {
+        String className = CLASS_PREFIX + counter.incrementAndGet();
+        byte[] classFile = classFile(className, compiled);
+        if (classFile == null) {
+            return compiled::evaluate;
+        }
+        Class<?> generated = new Loader().define(className.replace('/', '.'), classFile);
+        try {
+            return (ExpressionFunction) generated.getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("unable to instantiate generated class", e);
+        }
+    }
+
+    /**
+     * @return the class file for a final class named className implementing ExpressionFunction,
+     *         or null if the evaluate() body would exceed MAX_METHOD_BYTES
+     */
+    static byte[] classFile(String className, CompiledExpression compiled) {
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classRef(className);
+        int superClass = pool.classRef("java/lang/Object");
+        int iface = pool.classRef(INTERFACE);
+        int objectInit = pool.methodRef(superClass, "<init>", "()V");
+        int codeName = pool.utf8("Code");
+        int initName = pool.utf8("<init>");
+        int initType = pool.utf8("()V");
+        int evaluateName = pool.utf8("evaluate");
+        int evaluateType = pool.utf8("([D)D");
+
+        byte[] body = evaluateBody(compiled, pool);
+        if (body == null) {
+            return null;
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 512);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);      // minor version
+            out.writeShort(52);     // major version: Java 8
+            pool.writeTo(out);
+            out.writeShort(0x0031); // ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(iface);
+            out.writeShort(0);      // fields
+            out.writeShort(2);      // methods
+
+            // public <init>() { super(); }
+            byte[] init = {
+                0x2a,                                           // aload_0
+                (byte) 0xb7, (byte) (objectInit >> 8), (byte) objectInit, // invokespecial Object.<init>
+                (byte) 0xb1,                                    // return
+            };
+            writeMethod(out, initName, initType, codeName, 1, 1, init);
+
+            // public double evaluate(double[] slots)
+            int maxStack = 2 * compiled.stackSize() + 2;
+            writeMethod(out, evaluateName, evaluateType, codeName, maxStack, 2, body);
+
+            out.writeShort(0);      // class attributes
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException("You should never reach here:" + e);
+        }
+    }
+
+    /**
+     * @return the bytecode of evaluate(), or null if it would exceed MAX_METHOD_BYTES
+     */
+    private static byte[] evaluateBody(CompiledExpression compiled, ConstantPool pool) {
+        int[] code = compiled.code();
+        double[] constants = compiled.constants();
+        ByteArrayOutputStream body = new ByteArrayOutputStream(code.length * 3);
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+            case CompiledExpression.CONST:
+                double value = constants[code[pc++]];
+                if (Double.doubleToRawLongBits(value) == 0L) {
+                    body.write(0x0e);                   // dconst_0
+                } else if (value == 1.0) {
+                    body.write(0x0f);                   // dconst_1
+                } else {
+                    int index = pool.doubleConstant(value);
+                    body.write(0x14);                   // ldc2_w
+                    body.write(index >> 8);
+                    body.write(index);
+                }
+                break;
+            case CompiledExpression.LOAD:
+                body.write(0x2b);                       // aload_1
+                pushInt(body, code[pc++], pool);
+                body.write(0x31);                       // daload
+                break;
+            case CompiledExpression.ADD:
+                body.write(0x63);                       // dadd
+                break;
+            case CompiledExpression.MUL:
+                body.write(0x6b);                       // dmul
+                break;
+            default:
+                throw new RuntimeException("You should never reach here:" + code[pc - 1]);
+            }
+            if (body.size() >= MAX_METHOD_BYTES) {
+                return null;
+            }
+        }
+        body.write(0xaf);                               // dreturn
+        return body.toByteArray();
+    }
+
+    private static void pushInt(ByteArrayOutputStream body, int value, ConstantPool pool) {
+        if (value <= 5) {
+            body.write(0x03 + value);                   // iconst_<n>
+        } else if (value <= Byte.MAX_VALUE) {
+            body.write(0x10);                           // bipush
+            body.write(value);
+        } else if (value <= Short.MAX_VALUE) {
+            body.write(0x11);                           // sipush
+            body.write(value >> 8);
+            body.write(value);
+        } else {
+            int index = pool.intConstant(value);
+            body.write(0x13);                           // ldc_w
+            body.write(index >> 8);
+            body.write(index);
+        }
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int type, int codeName,
+            int maxStack, int maxLocals, byte[] code) throws IOException {
+        out.writeShort(0x0001);                         // ACC_PUBLIC
+        out.writeShort(name);
+        out.writeShort(type);
+        out.writeShort(1);                              // attributes: Code
+        out.writeShort(codeName);
+        out.writeInt(2 + 2 + 4 + code.length + 2 + 2);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0);                              // exception table
+        out.writeShort(0);                              // code attributes
+    }
+
+    /**
+     * Class-file constant pool, deduplicating entries as they are added.
+     */
+    private static class ConstantPool {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> indices = new HashMap<>();
+        private int next = 1;
+
+        int utf8(String value) {
+            Integer index = indices.get("U" + value);
+            if (index != null) {
+                return index;
+            }
+            try {
+                out.writeByte(1);
+                out.writeUTF(value);
+            } catch (IOException e) {
+                throw new RuntimeException("You should never reach here:" + e);
+            }
+            return add("U" + value, 1);
+        }
+
+        int classRef(String internalName) {
+            int name = utf8(internalName);
+            Integer index = indices.get("C" + internalName);
+            if (index != null) {
+                return index;
+            }
+            write(7, name);
+            return add("C" + internalName, 1);
+        }
+
+        int methodRef(int owner, String name, String descriptor) {
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(descriptor);
+            String key = "M" + owner + "." + name + descriptor;
+            Integer index = indices.get(key);
+            if (index != null) {
+                return index;
+            }
+            write(12, nameIndex, typeIndex);
+            int nameAndType = add("N" + name + descriptor, 1);
+            write(10, owner, nameAndType);
+            return add(key, 1);
+        }
+
+        int doubleConstant(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            Integer index = indices.get("D" + bits);
+            if (index != null) {
+                return index;
+            }
+            try {
+                out.writeByte(6);
+                out.writeLong(bits);
+            } catch (IOException e) {
+                throw new RuntimeException("You should never reach here:" + e);
+            }
+            return add("D" + bits, 2);    // doubles take two pool entries
+        }
+
+        int intConstant(int value) {
+            Integer index = indices.get("I" + value);
+            if (index != null) {
+                return index;
+            }
+            try {
+                out.writeByte(3);
+                out.writeInt(value);
+            } catch (IOException e) {
+                throw new RuntimeException("You should never reach here:" + e);
+            }
+            return add("I" + value, 1);
+        }
+
+        private void write(int tag, int... shorts) {
+            try {
+                out.writeByte(tag);
+                for (int s : shorts) {
+                    out.writeShort(s);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("You should never reach here:" + e);
+            }
+        }
+
+        private int add(String key, int width) {
+            int index = next;
+            indices.put(key, index);
+            next += width;
+            if (next > 0xffff) {
+                throw new IllegalStateException("constant pool overflow");
+            }
+            return index;
+        }
+
+        void writeTo(DataOutputStream target) throws IOException {
+            target.writeShort(next);
+            bytes.writeTo(target);
+        }
+    }
+
+    /**
+     * Class loader holding exactly one generated class.
+     */
+    private static class Loader extends ClassLoader {
+
+        Loader() {
+            super(ExpressionFunction.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] classFile) {
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+
+
+}
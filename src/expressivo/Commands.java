@@ -23,9 +23,50 @@ public class Commands {
      * @throws IOException if a suitable grammar file is not found
      */
     public static String differentiate(String expression, String variable) {
-        Expression toParse = Expression.parse(expression);
-        Expression differential = toParse.differentiate(new Variable(variable));
-        return differential.toString();  
+        return differentiate(Expression.parse(expression), variable).toString();
+    }
+    
+    /**
+     * Differentiate an expression with respect to a variable, without parsing or printing.
+     * @param expression the expression to differentiate
+     * @param variable the variable to differentiate by, a case-sensitive nonempty string of letters.
+     * @return expression's derivative with respect to variable, equal to
+     *         Expression.parse(differentiate(expression.toString(), variable))
+     */
+    public static Expression differentiate(Expression expression, String variable) {
+        return expression.differentiate(NodeFactory.variable(variable));
+    }
+    
+    /**
+     * Ways Commands can differentiate an expression.
+     */
+    public enum Differentiation {
+        /** apply the sum and product rules to the tree, as differentiate(String, String) does */
+        SYMBOLIC,
+        /** convert to Polynomial normal form and differentiate term by term; the result is
+         *  multiplied out with like terms collected */
+        POLYNOMIAL
+    }
+    
+    /**
+     * Differentiate an expression with respect to a variable.
+     * @param expression the expression to differentiate
+     * @param variable the variable to differentiate by, a case-sensitive nonempty string of letters.
+     * @param method how to differentiate; POLYNOMIAL stays compact for high-degree inputs where
+     *         SYMBOLIC grows quadratically
+     * @return expression's derivative with respect to variable.  Must be a valid expression equal
+     *         to the derivative.
+     * @throws IllegalArgumentException if the expression or variable is invalid
+     */
+    public static String differentiate(String expression, String variable, Differentiation method) {
+        switch (method) {
+        case SYMBOLIC:
+            return differentiate(expression, variable);
+        case POLYNOMIAL:
+            Expression toParse = Expression.parse(expression);
+            return Polynomial.fromExpression(toParse).differentiate(variable).toExpression().toString();
+        }
+        throw new RuntimeException("You should never reach here:" + method);
     }
     
     /**
@@ -42,8 +83,27 @@ public class Commands {
      * @throws IllegalArgumentException if the expression is invalid
      */
     public static String simplify(String expression, Map<String,Double> environment) {
-        Expression expressionToSimplify = Expression.parse(expression);
-        return expressionToSimplify.simplify(environment).toString();
+        return simplify(Expression.parse(expression), environment).toString();
+    }
+    
+    /**
+     * Simplify an expression, without parsing or printing.
+     * @param expression the expression to simplify
+     * @param environment maps variables to values, as for simplify(String, Map)
+     * @return expression after substituting environment, as for simplify(String, Map)
+     */
+    public static Expression simplify(Expression expression, Map<String,Double> environment) {
+        return expression.simplify(environment);
+    }
+    
+    /**
+     * Simplify an expression against an id-indexed environment, without boxing values.
+     * @param expression the expression to simplify
+     * @param environment binds variables to values, as for simplify(String, Map)
+     * @return expression after substituting environment, as for simplify(String, Map)
+     */
+    public static Expression simplify(Expression expression, Environment environment) {
+        return expression.simplify(environment);
     }
     
     /* Copyright (c) 2015-2017 MIT 6.005 course staff, all rights reserved.
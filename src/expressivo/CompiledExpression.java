@@ -0,0 +1,421 @@
+package expressivo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An Expression linearized into stack-machine code for fast repeated evaluation.
+ *
+ * Constants live in a double[] pool, variables are resolved to slot indices at compile time,
+ * and evaluate() runs the int[] code over a preallocated operand stack, so evaluating against
+ * a new binding allocates nothing and does no map lookups. evaluateColumns() runs the same code
+ * over whole columns of bindings at once. Results are identical to simplify() with every
+ * variable bound, since both apply + and * in the same order.
+ */
+public class CompiledExpression {
+
+    // opcodes; CONST and LOAD are followed by one operand in the code array
+    static final int CONST = 0;
+    static final int LOAD = 1;
+    static final int ADD = 2;
+    static final int MUL = 3;
+
+    /** rows per block in evaluateColumns(); maxStack blocks of this size stay in cache */
+    static final int BLOCK = 512;
+
+    // Rep: the code, the constant pool it indexes, the variable assigned to each slot and its
+    //      SymbolTable id, and the deepest the operand stack gets
+    private final int[] code;
+    private final double[] constants;
+    private final List<String> variables;
+    private final int[] slotIds;
+    private final int maxStack;
+    private final ThreadLocal<double[]> scratch;
+    private volatile ExpressionFunction function;
+
+    // Abstraction Function: Represents the expression whose postfix form is code, where
+    //                       CONST i pushes constants[i], LOAD s pushes the value bound to
+    //                       variables.get(s), and ADD/MUL pop two operands and push the result
+    //
+    // Rep Invariant: every CONST operand indexes constants, every LOAD operand indexes
+    //                variables, slotIds[s] == SymbolTable.id(variables.get(s)) for every slot
+    //                s, and running code from an empty stack leaves exactly one value after never
+    //                holding more than maxStack
+    //
+    // Safety from rep exposure argument: arrays are only shared with BytecodeCompiler, which does
+    //                                   not modify them; variables is unmodifiable
+
+    private CompiledExpression(int[] code, double[] constants, List<String> variables, int maxStack) {
+        this.code = code;
+        this.constants = constants;
+        this.variables = Collections.unmodifiableList(variables);
+        // resolved once here so bind(Environment) does no name lookups per binding
+        this.slotIds = new int[variables.size()];
+        for (int s = 0; s < this.slotIds.length; s++) {
+            this.slotIds[s] = SymbolTable.id(variables.get(s));
+        }
+        this.maxStack = maxStack;
+        this.scratch = ThreadLocal.withInitial(() -> new double[maxStack]);
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert this.code.length > 0;
+        assert this.maxStack >= 1;
+        assert this.slotIds.length == this.variables.size();
+    }
+
+    /**
+     * Compile an expression, assigning slots to its variables in order of first appearance.
+     * @param expression the expression to compile
+     * @return the compiled form of expression
+     */
+    public static CompiledExpression compile(Expression expression) {
+        return compile(expression, Collections.<String>emptyList());
+    }
+
+    /**
+     * Compile an expression with a caller-chosen slot layout.
+     * @param expression the expression to compile
+     * @param slotOrder variable names for slots 0, 1, ...; variables of expression not listed
+     *        get the following slots in order of first appearance
+     * @return the compiled form of expression
+     * @throws IllegalArgumentException if slotOrder names a variable twice
+     */
+    public static CompiledExpression compile(Expression expression, List<String> slotOrder) {
+        Map<String, Integer> slots = new HashMap<>();
+        List<String> variables = new ArrayList<>();
+        for (String name : slotOrder) {
+            if (slots.put(name, variables.size()) != null) {
+                throw new IllegalArgumentException("variable listed twice: " + name);
+            }
+            variables.add(name);
+        }
+
+        Assembler out = new Assembler(slots, variables);
+        if (!(expression instanceof Operator)) {
+            out.leaf(expression);
+        } else {
+            // postorder with the operator emitted after each operand past the first, so an
+            // n-ary node needs no more stack than the binary chain it stands for
+            Deque<Operator> nodes = new ArrayDeque<>();
+            Deque<int[]> finished = new ArrayDeque<>();
+            nodes.push((Operator) expression);
+            finished.push(new int[1]);
+            while (!nodes.isEmpty()) {
+                Operator node = nodes.peek();
+                int[] count = finished.peek();
+                if (count[0] == node.arity()) {
+                    nodes.pop();
+                    finished.pop();
+                    if (!nodes.isEmpty()) {
+                        out.operandDone(nodes.peek(), finished.peek());
+                    }
+                    continue;
+                }
+                Expression child = node.child(count[0]);
+                if (child instanceof Operator) {
+                    nodes.push((Operator) child);
+                    finished.push(new int[1]);
+                } else {
+                    out.leaf(child);
+                    out.operandDone(node, count);
+                }
+            }
+        }
+
+        double[] constants = new double[out.pool.size()];
+        for (int i = 0; i < constants.length; i++) {
+            constants[i] = out.pool.get(i);
+        }
+        return new CompiledExpression(Arrays.copyOf(out.code, out.length), constants, variables, out.maxStack);
+    }
+
+    /**
+     * Accumulates code, constants and slots while compile() walks an expression.
+     */
+    private static class Assembler {
+
+        private final Map<String, Integer> slots;
+        private final List<String> variables;
+        private final Map<Double, Integer> poolIndex = new HashMap<>();
+        final List<Double> pool = new ArrayList<>();
+        int[] code = new int[16];
+        int length = 0;
+        int depth = 0;
+        int maxStack = 0;
+
+        Assembler(Map<String, Integer> slots, List<String> variables) {
+            this.slots = slots;
+            this.variables = variables;
+        }
+
+        private void emit(int instruction) {
+            if (length == code.length) {
+                code = Arrays.copyOf(code, 2 * length);
+            }
+            code[length++] = instruction;
+        }
+
+        /**
+         * Emit code pushing a Number or Variable.
+         */
+        void leaf(Expression node) {
+            if (node instanceof Number) {
+                Double value = node.getValue();
+                Integer index = poolIndex.get(value);
+                if (index == null) {
+                    index = pool.size();
+                    pool.add(value);
+                    poolIndex.put(value, index);
+                }
+                emit(CONST);
+                emit(index);
+            } else if (node instanceof Variable) {
+                String name = ((Variable) node).getName();
+                Integer slot = slots.get(name);
+                if (slot == null) {
+                    slot = variables.size();
+                    slots.put(name, slot);
+                    variables.add(name);
+                }
+                emit(LOAD);
+                emit(slot);
+            } else {
+                throw new IllegalArgumentException("unsupported expression variant: " + node.getClass().getName());
+            }
+            depth++;
+            maxStack = Math.max(maxStack, depth);
+        }
+
+        /**
+         * Record that the code for one more operand of node has been emitted, combining it with
+         * the operands before it.
+         * @param count holds the number of operands of node emitted so far; incremented
+         */
+        void operandDone(Operator node, int[] count) {
+            count[0]++;
+            if (count[0] >= 2) {
+                emit(node.isSum() ? ADD : MUL);
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * @return the variable bound to each slot, in slot order
+     */
+    public List<String> getVariables() {
+        return this.variables;
+    }
+
+    /**
+     * @param name a variable name
+     * @return the slot assigned to name, or -1 if the expression does not use it
+     */
+    public int slotOf(String name) {
+        return this.variables.indexOf(name);
+    }
+
+    /**
+     * @return the number of slots evaluate() reads
+     */
+    public int slotCount() {
+        return this.variables.size();
+    }
+
+    /**
+     * Build a slot array from an environment.
+     * @param environment maps variables to values
+     * @return a new array holding environment's value for each slot
+     * @throws IllegalArgumentException if some variable of this expression is not bound
+     */
+    public double[] bind(Map<String, Double> environment) {
+        double[] slots = new double[this.variables.size()];
+        for (int i = 0; i < slots.length; i++) {
+            Double value = environment.get(this.variables.get(i));
+            if (value == null) {
+                throw new IllegalArgumentException("unbound variable: " + this.variables.get(i));
+            }
+            slots[i] = value;
+        }
+        return slots;
+    }
+
+    /**
+     * Build a slot array from an id-indexed environment.
+     * @param environment binds variables to values
+     * @return a new array holding environment's value for each slot
+     * @throws IllegalArgumentException if some variable of this expression is not bound
+     */
+    public double[] bind(Environment environment) {
+        double[] slots = new double[this.variables.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = environment.get(this.slotIds[i]);
+        }
+        return slots;
+    }
+
+    /**
+     * Evaluate against one binding, using a per-thread operand stack.
+     * @param slots value of each variable, indexed by slot; length at least slotCount()
+     * @return the value of the expression
+     */
+    public double evaluate(double[] slots) {
+        return evaluate(slots, this.scratch.get());
+    }
+
+    /**
+     * Evaluate against one binding using a caller-supplied operand stack.
+     * @param slots value of each variable, indexed by slot; length at least slotCount()
+     * @param stack scratch space of length at least stackSize(), overwritten
+     * @return the value of the expression
+     */
+    public double evaluate(double[] slots, double[] stack) {
+        final int[] code = this.code;
+        final double[] constants = this.constants;
+        int sp = -1;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+            case CONST:
+                stack[++sp] = constants[code[pc++]];
+                break;
+            case LOAD:
+                stack[++sp] = slots[code[pc++]];
+                break;
+            case ADD:
+                sp--;
+                stack[sp] = stack[sp] + stack[sp + 1];
+                break;
+            case MUL:
+                sp--;
+                stack[sp] = stack[sp] * stack[sp + 1];
+                break;
+            default:
+                throw new RuntimeException("You should never reach here:" + code[pc - 1]);
+            }
+        }
+        return stack[0];
+    }
+
+    /**
+     * Arrange named columns in slot order for evaluateColumns().
+     * @param columns maps variables to one column of values each, all of the same length
+     * @return columns for slots 0, 1, ..., sharing the arrays in columns
+     * @throws IllegalArgumentException if some variable of this expression has no column
+     */
+    public double[][] columnsFor(Map<String, double[]> columns) {
+        double[][] result = new double[this.variables.size()][];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = columns.get(this.variables.get(i));
+            if (result[i] == null) {
+                throw new IllegalArgumentException("no column for variable: " + this.variables.get(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Evaluate every row of a columnar input.
+     * @param columns one column per slot, each at least output.length long
+     * @param output receives the value of the expression for each row
+     */
+    public void evaluateColumns(double[][] columns, double[] output) {
+        evaluateColumns(columns, 0, output.length, output);
+    }
+
+    /**
+     * Evaluate rows [from, to) of a columnar input.
+     *
+     * Runs the code one opcode at a time over blocks of BLOCK rows rather than one row at a
+     * time, so each opcode is a tight loop over primitive arrays that HotSpot unrolls and
+     * compiles to SIMD instructions, and the per-opcode dispatch is paid once per block.
+     *
+     * @param columns one column per slot, each at least to long
+     * @param from first row to evaluate
+     * @param to one past the last row to evaluate
+     * @param output receives the value of row r at output[r]
+     */
+    public void evaluateColumns(double[][] columns, int from, int to, double[] output) {
+        final int[] code = this.code;
+        final double[] constants = this.constants;
+        final double[][] stack = new double[this.maxStack][Math.min(BLOCK, Math.max(0, to - from))];
+        for (int start = from; start < to; start += BLOCK) {
+            final int n = Math.min(BLOCK, to - start);
+            int sp = -1;
+            int pc = 0;
+            while (pc < code.length) {
+                switch (code[pc++]) {
+                case CONST:
+                    Arrays.fill(stack[++sp], 0, n, constants[code[pc++]]);
+                    break;
+                case LOAD:
+                    System.arraycopy(columns[code[pc++]], start, stack[++sp], 0, n);
+                    break;
+                case ADD: {
+                    final double[] a = stack[--sp];
+                    final double[] b = stack[sp + 1];
+                    for (int i = 0; i < n; i++) {
+                        a[i] = a[i] + b[i];
+                    }
+                    break;
+                }
+                case MUL: {
+                    final double[] a = stack[--sp];
+                    final double[] b = stack[sp + 1];
+                    for (int i = 0; i < n; i++) {
+                        a[i] = a[i] * b[i];
+                    }
+                    break;
+                }
+                default:
+                    throw new RuntimeException("You should never reach here:" + code[pc - 1]);
+                }
+            }
+            System.arraycopy(stack[0], 0, output, start, n);
+        }
+    }
+
+    /**
+     * @return the operand stack length evaluate(double[], double[]) needs
+     */
+    public int stackSize() {
+        return this.maxStack;
+    }
+
+    /**
+     * @return a function equivalent to evaluate(double[]) backed by a class generated for this
+     *         expression by BytecodeCompiler; generated on first call and reused afterwards
+     */
+    public ExpressionFunction function() {
+        ExpressionFunction result = this.function;
+        if (result == null) {
+            result = BytecodeCompiler.generate(this);
+            this.function = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return the code array; callers must not modify it
+     */
+    int[] code() {
+        return this.code;
+    }
+
+    /**
+     * @return the constant pool; callers must not modify it
+     */
+    double[] constants() {
+        return this.constants;
+    }
+
+
+}
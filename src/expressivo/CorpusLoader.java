@@ -0,0 +1,368 @@
+package expressivo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Loads files of expressions, one per line, by memory-mapping them and parsing on a fork-join
+ * pool.
+ *
+ * The file is mapped in regions of at most 1 GB that end at line boundaries, and each region is
+ * split in halves at line boundaries until a piece holds at most chunkSize bytes. Every line is
+ * parsed by DirectParser straight from the mapped bytes through a CharSequence view, so no
+ * String is built for a line unless it names a variable or a number. Lines are ASCII, as the
+ * grammar requires; a line ending in "\r\n" has the '\r' dropped, and a final newline does not
+ * start another line.
+ *
+ * A line that does not parse is recorded in the result's errors and loading goes on.
+ */
+public class CorpusLoader {
+
+    /** default bytes of input parsed by a single task */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    /** largest region of the file mapped at once; a single line may not be longer */
+    static final int MAXIMUM_REGION_SIZE = 1 << 30;
+
+    // Rep: the pool tasks run on, the largest piece parsed by a single task, and the largest
+    //      region mapped at once
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+    private final int regionSize;
+
+    // Abstraction Function: Represents a loader that maps files regionSize bytes at a time and
+    //                       parses pieces of at most chunkSize bytes as tasks on pool
+    //
+    // Rep Invariant: chunkSize >= 1, regionSize >= 1
+    //
+    // Safety from rep exposure argument: fields are final; the pool is shared by design
+
+    /**
+     * Make a loader on the common pool with the default chunk size.
+     */
+    public CorpusLoader() {
+        this(ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param pool the pool to parse on
+     * @param chunkSize largest number of bytes parsed by one task, at least 1
+     */
+    public CorpusLoader(ForkJoinPool pool, int chunkSize) {
+        this(pool, chunkSize, MAXIMUM_REGION_SIZE);
+    }
+
+    /**
+     * @param pool the pool to parse on
+     * @param chunkSize largest number of bytes parsed by one task, at least 1
+     * @param regionSize largest number of bytes mapped at once, at least 1
+     */
+    CorpusLoader(ForkJoinPool pool, int chunkSize, int regionSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunk size must be positive: " + chunkSize);
+        }
+        if (regionSize < 1) {
+            throw new IllegalArgumentException("region size must be positive: " + regionSize);
+        }
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+        this.regionSize = regionSize;
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert this.pool != null;
+        assert this.chunkSize >= 1;
+        assert this.regionSize >= 1;
+    }
+
+    /**
+     * A line that could not be parsed.
+     */
+    public static final class LineError {
+
+        private final long line;
+        private final int offset;
+        private final String message;
+
+        // Abstraction Function: Represents a failure to parse line number line (counting from
+        //                       1) at character offset within it, described by message
+        //
+        // Rep Invariant: line >= 1, offset >= 0
+        //
+        // Safety from rep exposure argument: all fields are immutable
+
+        LineError(long line, int offset, String message) {
+            this.line = line;
+            this.offset = offset;
+            this.message = message;
+            assert line >= 1 && offset >= 0;
+        }
+
+        /**
+         * @return the number of the line, counting from 1
+         */
+        public long getLine() {
+            return this.line;
+        }
+
+        /**
+         * @return index into the line of the first character that could not be parsed
+         */
+        public int getOffset() {
+            return this.offset;
+        }
+
+        /**
+         * @return description of what was wrong
+         */
+        public String getMessage() {
+            return this.message;
+        }
+
+        @Override
+        public String toString() {
+            return "line " + this.line + ": " + this.message;
+        }
+    }
+
+    /**
+     * The expressions of a loaded file, by line.
+     */
+    public static final class Corpus {
+
+        private final List<Expression> lines;
+        private final List<LineError> errors;
+
+        // Abstraction Function: Represents a file whose i-th line (counting from 0) parsed to
+        //                       lines[i], or failed to parse as described by the error for
+        //                       line i+1 if lines[i] == null
+        //
+        // Rep Invariant: errors are in line order, and lines[e.line-1] == null for each error e
+        //
+        // Safety from rep exposure argument: both lists are unmodifiable and hold immutable
+        //                                   values
+
+        Corpus(List<Expression> lines, List<LineError> errors) {
+            this.lines = Collections.unmodifiableList(lines);
+            this.errors = Collections.unmodifiableList(errors);
+        }
+
+        /**
+         * @return the number of lines in the file
+         */
+        public int size() {
+            return this.lines.size();
+        }
+
+        /**
+         * @param index index of a line, counting from 0
+         * @return the expression on that line, or null if it did not parse
+         */
+        public Expression get(int index) {
+            return this.lines.get(index);
+        }
+
+        /**
+         * @return every line's expression in file order, with null for lines that did not parse
+         */
+        public List<Expression> expressions() {
+            return this.lines;
+        }
+
+        /**
+         * @return the lines that did not parse, in file order
+         */
+        public List<LineError> errors() {
+            return this.errors;
+        }
+    }
+
+    /**
+     * Parse every line of a file.
+     * @param file a file of expressions, one per line
+     * @return the expression on each line, and the lines that did not parse
+     * @throws IOException if the file cannot be read, or holds a line longer than 1 GB
+     */
+    public Corpus load(Path file) throws IOException {
+        final List<Expression> lines = new ArrayList<>();
+        final List<LineError> errors = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                final MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(this.regionSize, size - position));
+                int end = region.limit();
+                if (position + end < size) {
+                    // stop after the last complete line; the rest starts the next region
+                    while (end > 0 && region.get(end - 1) != '\n') {
+                        end--;
+                    }
+                    if (end == 0) {
+                        throw new IOException("line longer than " + this.regionSize
+                                + " bytes at byte " + position + " of " + file);
+                    }
+                }
+                final Chunk chunk = this.pool.invoke(new ParseTask(region, 0, end, this.chunkSize));
+                for (LineError error : chunk.errors) {
+                    errors.add(new LineError(lines.size() + error.line, error.offset, error.message));
+                }
+                lines.addAll(Arrays.asList(chunk.lines).subList(0, chunk.count));
+                position += end;
+            }
+        }
+        return new Corpus(lines, errors);
+    }
+
+    /**
+     * Results for consecutive lines, with errors numbered from the first of them.
+     */
+    private static final class Chunk {
+
+        Expression[] lines = new Expression[16];
+        int count;
+        final List<LineError> errors = new ArrayList<>();
+
+        void add(Expression expression) {
+            if (this.count == this.lines.length) {
+                this.lines = Arrays.copyOf(this.lines, 2 * this.count);
+            }
+            this.lines[this.count++] = expression;
+        }
+
+        /**
+         * @return this chunk followed by next
+         */
+        Chunk append(Chunk next) {
+            for (LineError error : next.errors) {
+                this.errors.add(new LineError(this.count + error.line, error.offset, error.message));
+            }
+            if (this.count + next.count > this.lines.length) {
+                this.lines = Arrays.copyOf(this.lines, this.count + next.count);
+            }
+            System.arraycopy(next.lines, 0, this.lines, this.count, next.count);
+            this.count += next.count;
+            return this;
+        }
+    }
+
+    /**
+     * Split [from, to) of a region in halves at line boundaries until pieces fit in chunkSize,
+     * parsing the lines of each piece.
+     */
+    private static final class ParseTask extends RecursiveTask<Chunk> {
+
+        private static final long serialVersionUID = 1;
+
+        final ByteBuffer region;
+        final int from;
+        final int to;
+        final int chunkSize;
+
+        /**
+         * @param region mapped bytes, read only with absolute gets so tasks can share it
+         * @param from index of the start of a line
+         * @param to index just past a newline, or the end of the file
+         */
+        ParseTask(ByteBuffer region, int from, int to, int chunkSize) {
+            this.region = region;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected Chunk compute() {
+            if (to - from > chunkSize) {
+                int middle = from + (to - from) / 2;
+                while (middle < to && region.get(middle - 1) != '\n') {
+                    middle++;
+                }
+                if (middle < to) {
+                    ParseTask second = new ParseTask(region, middle, to, chunkSize);
+                    second.fork();
+                    Chunk first = new ParseTask(region, from, middle, chunkSize).compute();
+                    return first.append(second.join());
+                }
+            }
+            return parseLines();
+        }
+
+        private Chunk parseLines() {
+            Chunk chunk = new Chunk();
+            int start = from;
+            while (start < to) {
+                int newline = start;
+                while (newline < to && region.get(newline) != '\n') {
+                    newline++;
+                }
+                int end = newline > start && region.get(newline - 1) == '\r' ? newline - 1 : newline;
+                try {
+                    chunk.add(DirectParser.parse(new AsciiSequence(region, start, end)));
+                } catch (ExpressionParseException e) {
+                    chunk.add(null);
+                    chunk.errors.add(new LineError(chunk.count, e.getOffset(), e.getMessage()));
+                }
+                start = newline + 1;
+            }
+            return chunk;
+        }
+    }
+
+    /**
+     * A read-only view of ASCII bytes as characters.
+     */
+    private static final class AsciiSequence implements CharSequence {
+
+        private final ByteBuffer bytes;
+        private final int start;
+        private final int end;
+
+        AsciiSequence(ByteBuffer bytes, int start, int end) {
+            this.bytes = bytes;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return this.end - this.start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length()) {
+                throw new IndexOutOfBoundsException("index " + index + " of " + length());
+            }
+            return (char) (this.bytes.get(this.start + index) & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            if (from < 0 || to > length() || from > to) {
+                throw new IndexOutOfBoundsException("range [" + from + ", " + to + ") of " + length());
+            }
+            return new AsciiSequence(this.bytes, this.start + from, this.start + to);
+        }
+
+        @Override
+        public String toString() {
+            char[] chars = new char[length()];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = charAt(i);
+            }
+            return new String(chars);
+        }
+    }
+}
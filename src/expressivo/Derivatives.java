@@ -0,0 +1,129 @@
+package expressivo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Differentiates expressions by several variables at once, remembering every node it has seen.
+ *
+ * One walk computes the derivative of each node by every variable, so a gradient over k
+ * variables costs one traversal rather than k. The memo outlives each walk: a Hessian
+ * differentiates each gradient entry, and those entries are built largely from nodes of the
+ * original tree and from each other, so each distinct node is differentiated once however many
+ * outputs contain it. Results are equal to Expression.differentiate() for each variable.
+ */
+class Derivatives {
+
+    // Rep: the variables to differentiate by, and the derivatives of every node seen so far
+    private final Variable[] variables;
+    private final Map<Expression, Expression[]> memo;
+
+    // Abstraction Function: Represents the partial derivative operators by variables[0..k),
+    //                       with memo[e][i] = e.differentiate(variables[i]) for every e seen
+    //
+    // Rep Invariant: every array in memo has length variables.length
+    //
+    // Safety from rep exposure argument: instances never escape the static methods below
+
+    private Derivatives(List<Variable> variables) {
+        this.variables = variables.toArray(new Variable[variables.size()]);
+        this.memo = new IdentityHashMap<>();
+    }
+
+    /**
+     * @param root any expression
+     * @return root.differentiate(variables[i]) for each i, computed without recursion
+     */
+    private Expression[] of(Expression root) {
+        Deque<Expression> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Expression node = stack.peek();
+            if (this.memo.containsKey(node)) {
+                stack.pop();
+                continue;
+            }
+            Expression[] derivatives = new Expression[this.variables.length];
+            if (!(node instanceof Operator)) {
+                for (int i = 0; i < derivatives.length; i++) {
+                    derivatives[i] = node.differentiate(this.variables[i]);
+                }
+                this.memo.put(stack.pop(), derivatives);
+                continue;
+            }
+            Operator op = (Operator) node;
+            boolean ready = true;
+            for (int c = op.arity() - 1; c >= 0; c--) {
+                if (!this.memo.containsKey(op.child(c))) {
+                    stack.push(op.child(c));
+                    ready = false;
+                }
+            }
+            if (!ready) {
+                continue;
+            }
+            stack.pop();
+            Expression[][] operands = new Expression[op.arity()][];
+            for (int c = 0; c < operands.length; c++) {
+                operands[c] = this.memo.get(op.child(c));
+            }
+            Expression[] results = new Expression[op.arity()];
+            for (int i = 0; i < derivatives.length; i++) {
+                for (int c = 0; c < results.length; c++) {
+                    results[c] = operands[c][i];
+                }
+                derivatives[i] = Traversal.differentiateOperator(op, results);
+            }
+            this.memo.put(node, derivatives);
+        }
+        return this.memo.get(root);
+    }
+
+    /**
+     * @return expression.gradient(variables)
+     */
+    static List<Expression> gradient(Expression expression, List<Variable> variables) {
+        return Collections.unmodifiableList(Arrays.asList(new Derivatives(variables).of(expression)));
+    }
+
+    /**
+     * @return Expression.jacobian(expressions, variables)
+     */
+    static List<List<Expression>> jacobian(List<? extends Expression> expressions, List<Variable> variables) {
+        return jacobian(new Derivatives(variables), expressions);
+    }
+
+    /**
+     * @return expression.hessian(variables)
+     */
+    static List<List<Expression>> hessian(Expression expression, List<Variable> variables) {
+        Derivatives derivatives = new Derivatives(variables);
+        return jacobian(derivatives, Arrays.asList(derivatives.of(expression)));
+    }
+
+    private static List<List<Expression>> jacobian(Derivatives derivatives, List<? extends Expression> expressions) {
+        List<List<Expression>> rows = new ArrayList<>(expressions.size());
+        for (Expression expression : expressions) {
+            rows.add(Collections.unmodifiableList(Arrays.asList(derivatives.of(expression))));
+        }
+        return Collections.unmodifiableList(rows);
+    }
+
+    /**
+     * @return expression.differentiate(v, order)
+     */
+    static Expression differentiate(Expression expression, Variable v, int order) {
+        Derivatives derivatives = new Derivatives(Collections.singletonList(v));
+        Expression result = expression;
+        for (int n = 0; n < order; n++) {
+            result = derivatives.of(result)[0];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,188 @@
+package expressivo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Hand-written parser for the grammar in Expression.g.
+ *
+ * Goes straight from the input characters to expression nodes without building a ParseTree, and
+ * produces ASTs equal to those built by Expression.buildAST for every input the grammar accepts:
+ *
+ *   sum    ::= times ('+' times)*          a Plus for two terms, a Sum for more, like buildAST
+ *   times  ::= factor ('*' factor)*        a Times for two factors, a Product for more
+ *   factor ::= number | variable | '(' sum ')'
+ *
+ * Spaces are skipped between tokens, as with the grammar's @skip whitespace. Parenthesized
+ * levels are tracked on an explicit stack, so deeply nested input cannot overflow the call stack.
+ */
+public class DirectParser {
+
+    // Rep: the input being parsed and the index of the next unread character
+    private final CharSequence input;
+    private int pos;
+
+    // Abstraction Function: Represents a parse of input that has consumed input[0..pos)
+    //
+    // Rep Invariant: 0 <= pos <= input.length()
+    //
+    // Safety from rep exposure argument: instances never escape parse()
+
+    private DirectParser(CharSequence input) {
+        this.input = input;
+        this.pos = 0;
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert this.input != null;
+        assert this.pos >= 0 && this.pos <= this.input.length();
+    }
+
+    /**
+     * Parse an expression.
+     * @param input expression to parse, as defined in the PS1 handout.
+     * @return expression AST for the input
+     * @throws ExpressionParseException if the expression is invalid
+     */
+    public static Expression parse(CharSequence input) throws ExpressionParseException {
+        return new DirectParser(input).expression();
+    }
+
+    /**
+     * One parenthesized level of the input: the terms completed so far and the factors of the
+     * term being read.
+     */
+    private static class Level {
+
+        final List<Expression> terms = new ArrayList<>();
+        final List<Expression> factors = new ArrayList<>();
+
+        void endTerm() {
+            terms.add(NodeFactory.product(factors));
+            factors.clear();
+        }
+
+        Expression close() {
+            endTerm();
+            return NodeFactory.sum(terms);
+        }
+    }
+
+    /**
+     * Parse the whole input. Open parentheses are kept on an explicit stack of levels rather
+     * than the call stack, so nesting depth is limited only by memory.
+     */
+    private Expression expression() {
+        Deque<Level> open = new ArrayDeque<>();
+        Level level = new Level();
+        while (true) {
+            // expecting a factor; each '(' opens a new level
+            skipWhitespace();
+            if (pos >= input.length()) {
+                throw error("unexpected end of input");
+            }
+            char c = input.charAt(pos);
+            if (c == '(') {
+                pos++;
+                open.push(level);
+                level = new Level();
+                continue;
+            }
+            Expression factor;
+            if (isLetter(c)) {
+                factor = variable();
+            } else if (isDigit(c) || c == '.') {
+                factor = number();
+            } else {
+                throw error("expected a number, variable or '('");
+            }
+            // after a factor: '*' and '+' continue the level, ')' closes it into a factor of
+            // the enclosing level
+            while (true) {
+                level.factors.add(factor);
+                if (accept('*')) {
+                    break;
+                }
+                if (accept('+')) {
+                    level.endTerm();
+                    break;
+                }
+                if (open.isEmpty()) {
+                    skipWhitespace();
+                    if (pos < input.length()) {
+                        throw error("expected '+', '*' or end of input");
+                    }
+                    return level.close();
+                }
+                if (!accept(')')) {
+                    throw error("expected ')'");
+                }
+                factor = level.close();
+                level = open.pop();
+            }
+        }
+    }
+
+    private Expression number() {
+        int start = pos;
+        while (pos < input.length() && isDigit(input.charAt(pos))) {
+            pos++;
+        }
+        // the fraction is optional, but a '.' must be followed by at least one digit
+        if (pos + 1 < input.length() && input.charAt(pos) == '.' && isDigit(input.charAt(pos + 1))) {
+            pos += 2;
+            while (pos < input.length() && isDigit(input.charAt(pos))) {
+                pos++;
+            }
+        }
+        if (pos == start) {
+            throw error("expected a number");
+        }
+        return NodeFactory.number(Double.parseDouble(input.subSequence(start, pos).toString()));
+    }
+
+    private Expression variable() {
+        int start = pos;
+        while (pos < input.length() && isLetter(input.charAt(pos))) {
+            pos++;
+        }
+        return NodeFactory.variable(input.subSequence(start, pos).toString());
+    }
+
+    /**
+     * Skip whitespace, then consume c if it is the next character.
+     * @return true if c was consumed
+     */
+    private boolean accept(char c) {
+        skipWhitespace();
+        if (pos < input.length() && input.charAt(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (pos < input.length() && input.charAt(pos) == ' ') {
+            pos++;
+        }
+    }
+
+    private ExpressionParseException error(String message) {
+        checkRep();
+        return new ExpressionParseException(message, pos);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+
+}
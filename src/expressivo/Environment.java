@@ -0,0 +1,284 @@
+package expressivo;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A mutable binding of variables to values, stored as a double[] indexed by SymbolTable number.
+ *
+ * Looking up a variable is an array read rather than a String hash and a Map probe, and values
+ * are never boxed. Because symbol numbers are dense, the array is indexed directly and there is
+ * nothing to probe or rehash. Expression.simplify(Environment), CompiledExpression.bind() and
+ * ParallelEvaluator accept it alongside the Map-based methods, with the same results; of()
+ * adapts a Map to it and asMap() adapts it to code that expects a Map.
+ */
+public class Environment {
+
+    // Rep: the value of each variable, and a bitset of which variables are bound
+    private double[] values;
+    private long[] bound;
+
+    // Abstraction Function: Represents the map from SymbolTable.name(id) to values[id] for
+    //                       every id whose bit is set in bound
+    //
+    // Rep Invariant: values.length >= 64 * bound.length
+    //
+    // Safety from rep exposure argument: arrays are private and never handed out
+
+    /**
+     * Make an empty environment.
+     */
+    public Environment() {
+        this.values = new double[0];
+        this.bound = new long[0];
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert this.values.length >= 64 * this.bound.length;
+    }
+
+    /**
+     * @param environment maps variables to values
+     * @return a new environment with the same bindings
+     */
+    public static Environment of(Map<String, Double> environment) {
+        Environment result = new Environment();
+        for (Map.Entry<String, Double> binding : environment.entrySet()) {
+            result.bind(SymbolTable.id(binding.getKey()), binding.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * @param environment maps variables to values
+     * @param variables the variables to keep
+     * @return a new environment with the bindings of environment for variables only
+     */
+    static Environment of(Map<String, Double> environment, VariableSet variables) {
+        Environment result = new Environment();
+        for (int id = variables.next(0); id >= 0; id = variables.next(id + 1)) {
+            Double value = environment.get(SymbolTable.name(id));
+            if (value != null) {
+                result.bind(id, value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param variables the variables to keep
+     * @return a new environment with the bindings of this one for variables only
+     */
+    Environment restrictedTo(VariableSet variables) {
+        Environment result = new Environment();
+        for (int id = variables.next(0); id >= 0; id = variables.next(id + 1)) {
+            if (isBound(id)) {
+                result.bind(id, this.values[id]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Bind a variable, replacing any value it had.
+     * @param id the SymbolTable number of the variable
+     * @param value its value
+     * @return this environment
+     */
+    public Environment bind(int id, double value) {
+        int word = id >>> 6;
+        if (word >= this.bound.length) {
+            int words = Math.max(word + 1, 2 * this.bound.length);
+            this.bound = Arrays.copyOf(this.bound, words);
+            this.values = Arrays.copyOf(this.values, 64 * words);
+        }
+        this.bound[word] |= 1L << id;
+        this.values[id] = value;
+        checkRep();
+        return this;
+    }
+
+    /**
+     * Bind a variable, replacing any value it had.
+     * @param name the variable's name
+     * @param value its value
+     * @return this environment
+     */
+    public Environment bind(String name, double value) {
+        return bind(SymbolTable.id(name), value);
+    }
+
+    /**
+     * Bind a variable, replacing any value it had.
+     * @param variable the variable
+     * @param value its value
+     * @return this environment
+     */
+    public Environment bind(Variable variable, double value) {
+        return bind(variable.getId(), value);
+    }
+
+    /**
+     * Remove the binding of a variable, if any.
+     * @param id the SymbolTable number of the variable
+     * @return this environment
+     */
+    public Environment unbind(int id) {
+        int word = id >>> 6;
+        if (word < this.bound.length) {
+            this.bound[word] &= ~(1L << id);
+        }
+        return this;
+    }
+
+    /**
+     * @param id the SymbolTable number of a variable
+     * @return true if and only if that variable is bound
+     */
+    public boolean isBound(int id) {
+        int word = id >>> 6;
+        return word < this.bound.length && (this.bound[word] & (1L << id)) != 0;
+    }
+
+    /**
+     * @param id the SymbolTable number of a bound variable
+     * @return the value bound to that variable
+     * @throws IllegalArgumentException if the variable is not bound
+     */
+    public double get(int id) {
+        if (!isBound(id)) {
+            throw new IllegalArgumentException("unbound variable: " + SymbolTable.name(id));
+        }
+        return this.values[id];
+    }
+
+    /**
+     * @return true if and only if no variable is bound
+     */
+    public boolean isEmpty() {
+        for (long word : this.bound) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the set of bound variables
+     */
+    VariableSet bound() {
+        return VariableSet.ofWords(this.bound);
+    }
+
+    /**
+     * @return a new map with the same bindings as this environment
+     */
+    public Map<String, Double> toMap() {
+        Map<String, Double> result = new HashMap<>();
+        VariableSet variables = bound();
+        for (int id = variables.next(0); id >= 0; id = variables.next(id + 1)) {
+            result.put(SymbolTable.name(id), this.values[id]);
+        }
+        return result;
+    }
+
+    /**
+     * @return a read-only Map view of this environment that reflects later changes to it; get()
+     *         and containsKey() are array reads, and values are boxed only when returned
+     */
+    public Map<String, Double> asMap() {
+        return new AbstractMap<String, Double>() {
+            @Override
+            public Double get(Object key) {
+                int id = key instanceof String ? SymbolTable.find((String) key) : -1;
+                return id >= 0 && isBound(id) ? values[id] : null;
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return get(key) != null;
+            }
+
+            @Override
+            public Set<Map.Entry<String, Double>> entrySet() {
+                return new AbstractSet<Map.Entry<String, Double>>() {
+                    @Override
+                    public int size() {
+                        int size = 0;
+                        for (long word : bound) {
+                            size += Long.bitCount(word);
+                        }
+                        return size;
+                    }
+
+                    @Override
+                    public Iterator<Map.Entry<String, Double>> iterator() {
+                        final VariableSet variables = bound();
+                        return new Iterator<Map.Entry<String, Double>>() {
+                            private int next = variables.next(0);
+
+                            @Override
+                            public boolean hasNext() {
+                                return next >= 0;
+                            }
+
+                            @Override
+                            public Map.Entry<String, Double> next() {
+                                if (next < 0) {
+                                    throw new NoSuchElementException();
+                                }
+                                int id = next;
+                                next = variables.next(id + 1);
+                                return new AbstractMap.SimpleImmutableEntry<>(SymbolTable.name(id), values[id]);
+                            }
+                        };
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * @param thatObject any object
+     * @return true if and only if thatObject is an Environment with the same bindings, where
+     *         values compare like Double.equals
+     */
+    @Override
+    public boolean equals(Object thatObject) {
+        if (!(thatObject instanceof Environment)) return false;
+        Environment that = (Environment) thatObject;
+        VariableSet variables = this.bound();
+        if (!variables.equals(that.bound())) {
+            return false;
+        }
+        for (int id = variables.next(0); id >= 0; id = variables.next(id + 1)) {
+            if (Double.doubleToLongBits(this.values[id]) != Double.doubleToLongBits(that.values[id])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        VariableSet variables = bound();
+        for (int id = variables.next(0); id >= 0; id = variables.next(id + 1)) {
+            hash += id ^ Double.hashCode(this.values[id]);
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+}
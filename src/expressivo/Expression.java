@@ -1,7 +1,7 @@
 package expressivo;
 
-import java.io.File;
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 
 import lib6005.parser.*;
@@ -44,80 +44,11 @@ public interface Expression {
      * @param p
      *  ParseTree<ExpressionGrammar> that is assumed to have been constructed by 
      *  the grammar in Expression.g
-     * @return an Abstract Syntax Tree representing the parsed grammar
+     * @return an Abstract Syntax Tree representing the parsed grammar; built without
+     *  recursion, so the nesting depth of the input is not limited by the call stack
      */
     public static Expression buildAST(ParseTree<ExpressionGrammar> p) {
-        switch(p.getName()) {
-        
-        case NUMBER:
-            /*
-             * A number will be a terminal containing a number.
-             */
-            return new Number(Double.parseDouble((p.getContents())));
-        case VARIABLE:
-            /*
-             * A variable will be a terminal containing a variable.
-             */
-            return new Variable(p.getContents());
-        case FACTOR:
-            /*
-             * A factor will have either a number, variable or sum as child (in addition to some
-             * whitespace)
-             */
-            if (!p.childrenByName(ExpressionGrammar.NUMBER).isEmpty()) {
-                return buildAST(p.childrenByName(ExpressionGrammar.NUMBER).get(0));
-            }
-            else if(!p.childrenByName(ExpressionGrammar.VARIABLE).isEmpty()) {
-                return buildAST(p.childrenByName(ExpressionGrammar.VARIABLE).get(0));
-                }
-            else return buildAST(p.childrenByName(ExpressionGrammar.SUM).get(0));
-        case TIMES:
-            /*
-             * A times will have one or more children that need to be multiplied together.
-             */
-            boolean timesFirst = true;
-            Expression timesResult = null;
-            for(ParseTree<ExpressionGrammar> child : p.childrenByName(ExpressionGrammar.FACTOR)) {
-                if(timesFirst){
-                    timesResult = buildAST(child);
-                    timesFirst = false;
-                } else{
-                    timesResult = new Times(timesResult, buildAST(child));
-                }
-            }
-            if (timesFirst) {
-                throw new RuntimeException("times must have a non whitespace child:" + p); 
-            }
-            return timesResult;
-        case SUM:
-            boolean sumFirst = true;
-            Expression sumResult = null;
-            for(ParseTree<ExpressionGrammar> child : p.childrenByName(ExpressionGrammar.TIMES)) {
-                if(sumFirst){
-                    sumResult = buildAST(child);
-                    sumFirst = false;
-                } else{
-                    sumResult = new Plus(sumResult, buildAST(child));
-                }
-            }
-            if (sumFirst) {
-                throw new RuntimeException("sum must have a non whitespace child:" + p); 
-            }
-            return sumResult;
-
-        case ROOT:
-            /*
-             * The root has a single sum child, in addition to potentially some whitespace.
-             */
-            return buildAST(p.childrenByName(ExpressionGrammar.SUM).get(0));
-        case WHITESPACE:
-            /*
-             * We are always avoiding calling buildAST with whitespace, so the code should
-             * never make it here.
-             */
-            throw new RuntimeException("You should never reach here:" + p);
-        }
-        throw new RuntimeException("You should never reach here:" + p);
+        return AstBuilder.build(p);
     }
     /**
      * Parse an expression.
@@ -127,20 +58,15 @@ public interface Expression {
      * 
      */
     public static Expression parse(String input) throws IllegalArgumentException {
-        Parser<ExpressionGrammar> parser;
+        Parser<ExpressionGrammar> parser = ExpressionParser.get();
         try {
-            parser = GrammarCompiler.compile(new File("src/expressivo/Expression.g"), ExpressionGrammar.ROOT);
             Expression parsedExpression = buildAST(parser.parse(input));
             return parsedExpression;
         } catch (IllegalArgumentException i) {
             throw new IllegalArgumentException("invalid expression: unable to parse");
         } catch (UnableToParseException e) {
             throw new IllegalArgumentException("invalid expression: unable to parse");
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
         }
-        return null;
     }
 
 
@@ -152,6 +78,50 @@ public interface Expression {
      */
     public Expression differentiate(Variable v);
     
+    /**
+     * Differentiate an expression repeatedly.
+     * @param v Variable the expression will differentiate in relation to.
+     * @param order number of times to differentiate, at least 0
+     * @return an Expression equal to applying differentiate(v) order times, computed in one
+     * walk per order that differentiates each distinct subexpression once
+     */
+    public default Expression differentiate(Variable v, int order) {
+        if (order < 0) {
+            throw new IllegalArgumentException("order must not be negative: " + order);
+        }
+        return Derivatives.differentiate(this, v, order);
+    }
+    
+    /**
+     * @param variables the variables to differentiate by
+     * @return the gradient: an unmodifiable list whose i-th element equals
+     * differentiate(variables.get(i)), all computed in a single traversal of this expression
+     */
+    public default List<Expression> gradient(List<Variable> variables) {
+        return Derivatives.gradient(this, variables);
+    }
+    
+    /**
+     * @param variables the variables to differentiate by
+     * @return the Hessian: an unmodifiable matrix whose (i, j) element equals
+     * differentiate(variables.get(i)).differentiate(variables.get(j)), computed so that each
+     * distinct subexpression of this expression and its gradient is differentiated once
+     */
+    public default List<List<Expression>> hessian(List<Variable> variables) {
+        return Derivatives.hessian(this, variables);
+    }
+    
+    /**
+     * @param expressions the expressions to differentiate
+     * @param variables the variables to differentiate by
+     * @return the Jacobian: an unmodifiable matrix whose (i, j) element equals
+     * expressions.get(i).differentiate(variables.get(j)), computed so that subexpressions
+     * shared between the expressions are differentiated once
+     */
+    public static List<List<Expression>> jacobian(List<? extends Expression> expressions, List<Variable> variables) {
+        return Derivatives.jacobian(expressions, variables);
+    }
+    
     /**
      * Simplify an expression.  
      * @param environment A mapping of Variables to numeric (double) values.
@@ -161,12 +131,41 @@ public interface Expression {
      */
     public Expression simplify(Map<String,Double> environment);
     
+    /**
+     * Simplify an expression against an id-indexed environment.
+     * @param environment binds variables to numeric (double) values by SymbolTable number.
+     * @return an expression equal to simplify(environment.toMap())
+     */
+    public default Expression simplify(Environment environment) {
+        return simplify(environment.toMap());
+    }
+    
+    /**
+     * Simplify an expression to polynomial normal form.
+     * @param environment A mapping of Variables to numeric (double) values.
+     * @return A new Expression object equal to this one after substituting environment, with
+     * every product multiplied out and like terms collected, as built by Polynomial.toExpression().
+     * Equal polynomials always give structurally-equal results.
+     */
+    public default Expression normalize(Map<String,Double> environment) {
+        return Polynomial.fromExpression(this, environment).toExpression();
+    }
+    
     /**
      * @return a parsable representation of this expression, such that
      * for all e:Expression, e.equals(Expression.parse(e.toString())).
      */
     @Override 
     public String toString();
+    
+    /**
+     * Write toString() to out, streaming it instead of building intermediate strings.
+     * @param out where to write this expression
+     * @throws IOException if out does
+     */
+    public default void appendTo(Appendable out) throws IOException {
+        Traversal.append(this, out);
+    }
 
     /**
      * @param thatObject any object
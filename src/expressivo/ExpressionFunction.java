@@ -0,0 +1,17 @@
+package expressivo;
+
+/**
+ * A numeric function of an expression's variables.
+ *
+ * Implementations read the value of each variable from a slot array laid out as described by
+ * the CompiledExpression they were built from.
+ */
+@FunctionalInterface
+public interface ExpressionFunction {
+
+    /**
+     * @param slots value of each variable, indexed by slot
+     * @return the value of the expression under that binding
+     */
+    public double evaluate(double[] slots);
+}
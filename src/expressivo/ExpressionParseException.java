@@ -0,0 +1,31 @@
+package expressivo;
+
+/**
+ * Thrown when an input does not match the Expression grammar.
+ *
+ * Carries the offset of the first character that could not be parsed, so callers can point at
+ * the error without parsing the message.
+ */
+public class ExpressionParseException extends IllegalArgumentException {
+
+    private static final long serialVersionUID = 1;
+
+    private final int offset;
+
+    /**
+     * @param message description of what was expected
+     * @param offset index into the input of the first character that could not be parsed,
+     *        or the input length if the input ended too early
+     */
+    public ExpressionParseException(String message, int offset) {
+        super("invalid expression: " + message + " at offset " + offset);
+        this.offset = offset;
+    }
+
+    /**
+     * @return index into the input of the first character that could not be parsed
+     */
+    public int getOffset() {
+        return this.offset;
+    }
+}
@@ -0,0 +1,117 @@
+package expressivo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import expressivo.Expression.ExpressionGrammar;
+import lib6005.parser.GrammarCompiler;
+import lib6005.parser.Parser;
+import lib6005.parser.UnableToParseException;
+
+/**
+ * Holder for the compiled Expression grammar.
+ *
+ * The grammar in Expression.g is compiled at most once per JVM and the resulting Parser is
+ * shared by every call to Expression.parse. A parserlib Parser keeps no state between calls
+ * (each parse gets a fresh ParserState), so one instance is safe to use from many threads.
+ *
+ * Also selects between that grammar-based parser and DirectParser, which builds the same ASTs
+ * without an intermediate ParseTree.
+ */
+public class ExpressionParser {
+
+    // Rep: the compiled parser, or null until the first call to get()
+    private static volatile Parser<ExpressionGrammar> parser;
+
+    // Abstraction Function: Represents the grammar in Expression.g compiled with ROOT as the start rule
+    //
+    // Rep Invariant: once non-null, parser never changes
+    //
+    // Safety from rep exposure argument: Parser is never mutated after compilation
+
+    /**
+     * The ways an input can be parsed into an Expression. Both produce equal ASTs.
+     */
+    public enum Strategy {
+        /** compiled Expression.g, then Expression.buildAST over the ParseTree */
+        GRAMMAR,
+        /** DirectParser, one pass with no ParseTree */
+        DIRECT
+    }
+
+    private static final String GRAMMAR_RESOURCE = "Expression.g";
+    private static final String GRAMMAR_FILE = "src/expressivo/Expression.g";
+
+    private ExpressionParser() {
+        // not instantiable
+    }
+
+    /**
+     * @return the shared parser for the Expression grammar, compiling it on first use.
+     * @throws IllegalStateException if the grammar cannot be found or does not compile
+     */
+    public static Parser<ExpressionGrammar> get() {
+        Parser<ExpressionGrammar> result = parser;
+        if (result == null) {
+            synchronized (ExpressionParser.class) {
+                result = parser;
+                if (result == null) {
+                    result = compile();
+                    parser = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Compile the grammar now rather than on the first parse, so that startup pays the cost
+     * instead of the first request.
+     * @throws IllegalStateException if the grammar cannot be found or does not compile
+     */
+    public static void warmUp() {
+        get();
+    }
+
+    /**
+     * Parse an expression with the given strategy.
+     * @param input expression to parse, as defined in the PS1 handout.
+     * @param strategy which parser to use
+     * @return expression AST for the input
+     * @throws IllegalArgumentException if the expression is invalid; DIRECT throws the
+     *         ExpressionParseException subtype, which reports the offset of the error
+     */
+    public static Expression parse(CharSequence input, Strategy strategy) throws IllegalArgumentException {
+        switch (strategy) {
+        case GRAMMAR:
+            return Expression.parse(input.toString());
+        case DIRECT:
+            return DirectParser.parse(input);
+        }
+        throw new RuntimeException("You should never reach here:" + strategy);
+    }
+
+    /**
+     * Load Expression.g from the classpath next to this class, falling back to the source tree
+     * for runs where resources were not copied to the output folder.
+     */
+    private static Parser<ExpressionGrammar> compile() {
+        try (InputStream in = ExpressionParser.class.getResourceAsStream(GRAMMAR_RESOURCE)) {
+            if (in != null) {
+                return GrammarCompiler.compile(in, ExpressionGrammar.ROOT);
+            }
+            File file = new File(GRAMMAR_FILE);
+            if (!file.isFile()) {
+                throw new IllegalStateException("grammar not found: " + GRAMMAR_RESOURCE);
+            }
+            return GrammarCompiler.compile(file, ExpressionGrammar.ROOT);
+        } catch (UnableToParseException e) {
+            throw new IllegalStateException("grammar does not compile: " + e.getMessage(), e);
+        } catch (IOException e) {
+            throw new IllegalStateException("unable to read grammar: " + e.getMessage(), e);
+        }
+    }
+
+
+}
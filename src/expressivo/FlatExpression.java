@@ -0,0 +1,504 @@
+package expressivo;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable expression stored as parallel primitive arrays instead of one object per node.
+ *
+ * Nodes are numbered in post-order, so every operand comes before the operators that use it and
+ * the root is the last node. Each node costs one kind byte and one int, plus one int per operand
+ * and a double for a number, against an object header, references and cached fields for every
+ * node of an Expression tree. A subtree shared within the Expression is stored once.
+ *
+ * simplify(), differentiate(), toString() and evaluate() work on the arrays directly, with the
+ * same rules as the Expression operations, so of(e).simplify(env).toExpression() equals
+ * e.simplify(env), of(e).differentiate(v).toExpression() equals e.differentiate(v), and
+ * of(e).toString() equals e.toString().
+ */
+public class FlatExpression {
+
+    private static final byte NUMBER = 0;
+    private static final byte VARIABLE = 1;
+    private static final byte SUM = 2;
+    private static final byte PRODUCT = 3;
+
+    // Rep: for node i, kinds[i] is its variant and operands[i] is an index into constants for a
+    //      number, a SymbolTable id for a variable, or for an operator the index in children of
+    //      its arity followed by the indices of its operands
+    private final byte[] kinds;
+    private final int[] operands;
+    private final double[] constants;
+    private final int[] children;
+
+    // Abstraction Function: Represents the expression whose root is node kinds.length-1, where
+    //                       node i is the number constants[operands[i]], the variable named
+    //                       SymbolTable.name(operands[i]), or the sum or product of the nodes
+    //                       children[operands[i]+1 .. operands[i]+children[operands[i]]] in order
+    //
+    // Rep Invariant: kinds.length == operands.length >= 1, every operator has arity >= 2 and
+    //                operands with smaller indices than its own, and every node is reachable
+    //                from the root
+    //
+    // Safety from rep exposure argument: all fields are private and final, the arrays are never
+    //                                   handed out, and only Builder.build() creates instances
+
+    private FlatExpression(byte[] kinds, int[] operands, double[] constants, int[] children) {
+        this.kinds = kinds;
+        this.operands = operands;
+        this.constants = constants;
+        this.children = children;
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert this.kinds.length == this.operands.length && this.kinds.length >= 1;
+        for (int i = 0; i < this.kinds.length; i++) {
+            if (isOperator(i)) {
+                assert arity(i) >= 2;
+                for (int k = 0; k < arity(i); k++) {
+                    assert child(i, k) < i;
+                }
+            }
+        }
+    }
+
+    private boolean isOperator(int node) {
+        return this.kinds[node] >= SUM;
+    }
+
+    private int arity(int node) {
+        return this.children[this.operands[node]];
+    }
+
+    private int child(int node, int k) {
+        return this.children[this.operands[node] + 1 + k];
+    }
+
+    private int root() {
+        return this.kinds.length - 1;
+    }
+
+    /**
+     * @param expression any expression
+     * @return the flat encoding of expression
+     */
+    public static FlatExpression of(Expression expression) {
+        final Builder builder = new Builder();
+        final Map<Expression, Integer> done = new IdentityHashMap<>();
+        final Deque<Expression> stack = new ArrayDeque<>();
+        stack.push(expression);
+        while (!stack.isEmpty()) {
+            Expression node = stack.peek();
+            if (done.containsKey(node)) {
+                stack.pop();
+                continue;
+            }
+            if (node instanceof Number) {
+                done.put(stack.pop(), builder.number(node.getValue()));
+                continue;
+            }
+            if (node instanceof Variable) {
+                done.put(stack.pop(), builder.variable(((Variable) node).getId()));
+                continue;
+            }
+            Operator op = (Operator) node;
+            boolean ready = true;
+            for (int i = op.arity() - 1; i >= 0; i--) {
+                if (!done.containsKey(op.child(i))) {
+                    stack.push(op.child(i));
+                    ready = false;
+                }
+            }
+            if (!ready) {
+                continue;
+            }
+            stack.pop();
+            int[] operands = new int[op.arity()];
+            for (int i = 0; i < operands.length; i++) {
+                operands[i] = done.get(op.child(i));
+            }
+            done.put(node, builder.operator(op.isSum(), operands, operands.length));
+        }
+        return builder.build(done.get(expression));
+    }
+
+    /**
+     * @return an Expression equal to the one this encodes, built through NodeFactory
+     */
+    public Expression toExpression() {
+        final Expression[] built = new Expression[this.kinds.length];
+        final List<Expression> operands = new ArrayList<>();
+        for (int i = 0; i < built.length; i++) {
+            switch (this.kinds[i]) {
+            case NUMBER:
+                built[i] = NodeFactory.number(this.constants[this.operands[i]]);
+                break;
+            case VARIABLE:
+                built[i] = NodeFactory.variable(SymbolTable.name(this.operands[i]));
+                break;
+            default:
+                operands.clear();
+                for (int k = 0; k < arity(i); k++) {
+                    operands.add(built[child(i, k)]);
+                }
+                built[i] = this.kinds[i] == SUM ? NodeFactory.sum(operands) : NodeFactory.product(operands);
+            }
+        }
+        return built[root()];
+    }
+
+    /**
+     * @return the number of distinct nodes stored, counting a shared subtree once
+     */
+    public int size() {
+        return this.kinds.length;
+    }
+
+    /**
+     * @param environment binds every variable of this expression to a value
+     * @return the value of this expression under environment
+     * @throws IllegalArgumentException if a variable of this expression is not bound
+     */
+    public double evaluate(Environment environment) {
+        final double[] values = new double[this.kinds.length];
+        for (int i = 0; i < values.length; i++) {
+            switch (this.kinds[i]) {
+            case NUMBER:
+                values[i] = this.constants[this.operands[i]];
+                break;
+            case VARIABLE:
+                values[i] = environment.get(this.operands[i]);
+                break;
+            case SUM: {
+                double value = values[child(i, 0)];
+                for (int k = 1; k < arity(i); k++) {
+                    value += values[child(i, k)];
+                }
+                values[i] = value;
+                break;
+            }
+            default: {
+                double value = values[child(i, 0)];
+                for (int k = 1; k < arity(i); k++) {
+                    value *= values[child(i, k)];
+                }
+                values[i] = value;
+            }
+            }
+        }
+        return values[root()];
+    }
+
+    /**
+     * @param environment maps variables to values
+     * @return the encoding of the expression's simplification, as Expression.simplify defines it
+     */
+    public FlatExpression simplify(Environment environment) {
+        final Builder builder = new Builder(this);
+        final int[] result = new int[this.kinds.length];
+        int[] operands = new int[2];
+        for (int i = 0; i < result.length; i++) {
+            if (this.kinds[i] == VARIABLE && environment.isBound(this.operands[i])) {
+                result[i] = builder.number(environment.get(this.operands[i]));
+            } else if (!isOperator(i)) {
+                result[i] = i;
+            } else {
+                // fold leading numbers like Traversal.fold
+                boolean sum = this.kinds[i] == SUM;
+                int n = arity(i);
+                int first = result[child(i, 0)];
+                int next = 1;
+                if (builder.isNumber(first) && builder.isNumber(result[child(i, 1)])) {
+                    double value = builder.value(first);
+                    while (next < n && builder.isNumber(result[child(i, next)])) {
+                        double operand = builder.value(result[child(i, next)]);
+                        value = sum ? value + operand : value * operand;
+                        next++;
+                    }
+                    first = builder.number(value);
+                }
+                if (next == n) {
+                    result[i] = first;
+                    continue;
+                }
+                if (operands.length < n) {
+                    operands = new int[n];
+                }
+                boolean unchanged = first == child(i, 0) && next == 1;
+                operands[0] = first;
+                int count = 1;
+                for (int k = next; k < n; k++) {
+                    operands[count++] = result[child(i, k)];
+                    unchanged = unchanged && result[child(i, k)] == child(i, k);
+                }
+                result[i] = unchanged ? i : builder.operator(sum, operands, count);
+            }
+        }
+        return builder.build(result[root()]);
+    }
+
+    /**
+     * @param v the variable to differentiate by
+     * @return the encoding of the expression's derivative, as Expression.differentiate defines it
+     */
+    public FlatExpression differentiate(Variable v) {
+        final Builder builder = new Builder(this);
+        final int zero = builder.number(0);
+        final int one = builder.number(1);
+        final int[] result = new int[this.kinds.length];
+        int[] operands = new int[2];
+        for (int i = 0; i < result.length; i++) {
+            switch (this.kinds[i]) {
+            case NUMBER:
+                result[i] = zero;
+                break;
+            case VARIABLE:
+                result[i] = this.operands[i] == v.getId() ? one : zero;
+                break;
+            case SUM: {
+                int n = arity(i);
+                if (operands.length < n) {
+                    operands = new int[n];
+                }
+                for (int k = 0; k < n; k++) {
+                    operands[k] = result[child(i, k)];
+                }
+                result[i] = builder.operator(true, operands, n);
+                break;
+            }
+            default: {
+                // product rule d(p*f) = p*df + f*dp down the left-folded chain, as in
+                // Traversal.differentiateOperator
+                int[] pair = new int[2];
+                int prefix = child(i, 0);
+                int differential = result[child(i, 0)];
+                for (int k = 1; k < arity(i); k++) {
+                    pair[0] = prefix;
+                    pair[1] = result[child(i, k)];
+                    int left = builder.operator(false, pair, 2);
+                    pair[0] = child(i, k);
+                    pair[1] = differential;
+                    int right = builder.operator(false, pair, 2);
+                    pair[0] = left;
+                    pair[1] = right;
+                    differential = builder.operator(true, pair, 2);
+                    if (k + 1 < arity(i)) {
+                        pair[0] = prefix;
+                        pair[1] = child(i, k);
+                        prefix = builder.operator(false, pair, 2);
+                    }
+                }
+                result[i] = differential;
+            }
+            }
+        }
+        return builder.build(result[root()]);
+    }
+
+    /**
+     * Write the toString() form of this expression to out.
+     * @param out where to write it
+     * @throws IOException if out does
+     */
+    public void appendTo(Appendable out) throws IOException {
+        // holds node indices still to print, and PLUS, TIMES or CLOSE to write verbatim
+        final int plus = -1;
+        final int times = -2;
+        final int close = -3;
+        // a node pushes at most 3 items per operand, and the nodes on the stack at once lie on
+        // one path from the root, so each node is expanded there at most once
+        final int[] stack = new int[3 * this.children.length + 1];
+        int top = 0;
+        stack[top++] = root();
+        while (top > 0) {
+            int item = stack[--top];
+            if (item == plus) {
+                out.append('+');
+            } else if (item == times) {
+                out.append('*');
+            } else if (item == close) {
+                out.append(')');
+            } else if (this.kinds[item] == NUMBER) {
+                out.append(String.valueOf(this.constants[this.operands[item]]));
+            } else if (this.kinds[item] == VARIABLE) {
+                out.append(SymbolTable.name(this.operands[item]));
+            } else {
+                // a sum of n terms prints as n-1 nested parenthesized pairs, a product bare
+                boolean sum = this.kinds[item] == SUM;
+                for (int k = arity(item) - 1; k >= 1; k--) {
+                    if (sum) {
+                        stack[top++] = close;
+                    }
+                    stack[top++] = child(item, k);
+                    stack[top++] = sum ? plus : times;
+                }
+                stack[top++] = child(item, 0);
+                if (sum) {
+                    for (int k = 1; k < arity(item); k++) {
+                        out.append('(');
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the same string as toExpression().toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        try {
+            appendTo(out);
+        } catch (IOException e) {
+            throw new RuntimeException("You should never reach here:" + e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Growable arrays for nodes added in post-order.
+     */
+    private static final class Builder {
+
+        private byte[] kinds;
+        private int[] operands;
+        private double[] constants;
+        private int[] children;
+        private int nodeCount;
+        private int constantCount;
+        private int childCount;
+
+        Builder() {
+            this.kinds = new byte[16];
+            this.operands = new int[16];
+            this.constants = new double[16];
+            this.children = new int[16];
+        }
+
+        /**
+         * Start with the nodes of base, so their indices stay valid.
+         */
+        Builder(FlatExpression base) {
+            this.kinds = Arrays.copyOf(base.kinds, base.kinds.length + 16);
+            this.operands = Arrays.copyOf(base.operands, base.operands.length + 16);
+            this.constants = Arrays.copyOf(base.constants, base.constants.length + 16);
+            this.children = Arrays.copyOf(base.children, base.children.length + 16);
+            this.nodeCount = base.kinds.length;
+            this.constantCount = base.constants.length;
+            this.childCount = base.children.length;
+        }
+
+        boolean isNumber(int node) {
+            return this.kinds[node] == NUMBER;
+        }
+
+        double value(int node) {
+            return this.constants[this.operands[node]];
+        }
+
+        int number(double value) {
+            if (this.constantCount == this.constants.length) {
+                this.constants = Arrays.copyOf(this.constants, 2 * this.constantCount);
+            }
+            this.constants[this.constantCount] = value;
+            return add(NUMBER, this.constantCount++);
+        }
+
+        int variable(int id) {
+            return add(VARIABLE, id);
+        }
+
+        /**
+         * @param sum true for a sum, false for a product
+         * @param nodes the operand nodes in order; nodes[0..count) are used
+         * @param count the number of operands, at least 2
+         */
+        int operator(boolean sum, int[] nodes, int count) {
+            if (this.childCount + count + 1 > this.children.length) {
+                this.children = Arrays.copyOf(this.children, 2 * (this.childCount + count + 1));
+            }
+            int start = this.childCount;
+            this.children[this.childCount++] = count;
+            System.arraycopy(nodes, 0, this.children, this.childCount, count);
+            this.childCount += count;
+            return add(sum ? SUM : PRODUCT, start);
+        }
+
+        private int add(byte kind, int operand) {
+            if (this.nodeCount == this.kinds.length) {
+                this.kinds = Arrays.copyOf(this.kinds, 2 * this.nodeCount);
+                this.operands = Arrays.copyOf(this.operands, 2 * this.nodeCount);
+            }
+            this.kinds[this.nodeCount] = kind;
+            this.operands[this.nodeCount] = operand;
+            return this.nodeCount++;
+        }
+
+        /**
+         * @param root a node added to this builder
+         * @return the expression rooted at root, keeping only the nodes it reaches
+         */
+        FlatExpression build(int root) {
+            // operands have smaller indices than their operators, so one downward pass marks
+            // everything reachable and one upward pass renumbers it in post-order
+            boolean[] reachable = new boolean[root + 1];
+            reachable[root] = true;
+            int nodes = 0;
+            int constantsKept = 0;
+            int childrenKept = 0;
+            for (int i = root; i >= 0; i--) {
+                if (!reachable[i]) {
+                    continue;
+                }
+                nodes++;
+                if (this.kinds[i] == NUMBER) {
+                    constantsKept++;
+                } else if (this.kinds[i] != VARIABLE) {
+                    int start = this.operands[i];
+                    childrenKept += this.children[start] + 1;
+                    for (int k = 1; k <= this.children[start]; k++) {
+                        reachable[this.children[start + k]] = true;
+                    }
+                }
+            }
+            byte[] newKinds = new byte[nodes];
+            int[] newOperands = new int[nodes];
+            double[] newConstants = new double[constantsKept];
+            int[] newChildren = new int[childrenKept];
+            int[] renumbered = new int[root + 1];
+            int node = 0;
+            int constant = 0;
+            int child = 0;
+            for (int i = 0; i <= root; i++) {
+                if (!reachable[i]) {
+                    continue;
+                }
+                renumbered[i] = node;
+                newKinds[node] = this.kinds[i];
+                if (this.kinds[i] == NUMBER) {
+                    newConstants[constant] = this.constants[this.operands[i]];
+                    newOperands[node] = constant++;
+                } else if (this.kinds[i] == VARIABLE) {
+                    newOperands[node] = this.operands[i];
+                } else {
+                    int start = this.operands[i];
+                    newOperands[node] = child;
+                    newChildren[child++] = this.children[start];
+                    for (int k = 1; k <= this.children[start]; k++) {
+                        newChildren[child++] = renumbered[this.children[start + k]];
+                    }
+                }
+                node++;
+            }
+            return new FlatExpression(newKinds, newOperands, newConstants, newChildren);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package expressivo;
+
+/**
+ * Hash mixing shared by the operator variants of Expression.
+ */
+class Hashing {
+
+    /** seeds that keep otherwise identical operator trees apart */
+    static final int PLUS_SEED = 0x2b1f3c55;
+    static final int TIMES_SEED = 0x6a09e667;
+
+    private Hashing() {
+        // not instantiable
+    }
+
+    /**
+     * Combine the hashes of an operator's operands. The result depends on the seed and on the
+     * order of the operands, so a+b, b+a and a*b hash differently.
+     * @param seed one of the operator seeds above
+     * @param first hash of the first operand
+     * @param second hash of the second operand
+     * @return a well-mixed hash of (seed, first, second)
+     */
+    static int combine(int seed, int first, int second) {
+        int h = seed;
+        h = 31 * h + first;
+        h = 31 * h + mix(second);
+        return mix(h);
+    }
+
+    /**
+     * @return h with its bits avalanched (the MurmurHash3 32-bit finalizer)
+     */
+    static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
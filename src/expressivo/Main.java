@@ -1,12 +1,18 @@
 package expressivo;
 
 import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.NoSuchElementException;
-import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -21,54 +27,112 @@ public class Main {
     /**
      * Read expression and command inputs from the console and output results.
      * An empty input terminates the program.
-     * @param args unused
+     * 
+     * With --batch, run non-interactively instead: read commands from the named file, or from
+     * standard input if none is named, and write one output line per non-blank input line to
+     * standard output, with no prompts. --parallel additionally spreads independent
+     * expressions over all processors; see BatchProcessor.
+     * 
+     *   java expressivo.Main --batch [--parallel] [file]
+     * 
+     * @param args unused for the console; otherwise --batch, optionally --parallel, and
+     *        optionally a file name
      * @throws IOException if there is an error reading the input
      */
     public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals(BATCH_FLAG)) {
+            batch(args);
+            return;
+        }
         final BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
-        Optional<String> currentExpression = Optional.empty();
+        ExpressionParser.warmUp();
+        final Session session = new Session();
         
         while (true) {
             System.out.print("> ");
             final String input = in.readLine();
             
-            if (input.isEmpty()) {
+            if (input == null || input.isEmpty()) {
                 return; // exits the program
             }
             
-            try {
-                final String output;
-                
-                if (input.startsWith(DIFFERENTIATE_PREFIX)) {
-                    final String variable = parseDifferentiate(input);
-                    output = Commands.differentiate(currentExpression.get(), variable);
-                    currentExpression = Optional.of(output);
-                } else if (input.startsWith(SIMPLIFY_PREFIX)) {
-                    final Map<String,Double> environment = parseSimpify(input);
-                    output = Commands.simplify(currentExpression.get(), environment);
-                    // ... but don't change currentExpression
-                } else {
-                    final Expression expression = Expression.parse(input);
-                    output = expression.toString();
-                    currentExpression = Optional.of(output);
-                }
-                
-                System.out.println(output);
-            } catch (NoSuchElementException nse) {
-                // currentExpression was empty
-                System.out.println("must enter an expression before using this command");
-            } catch (RuntimeException re) {
-                System.out.println(re.getClass().getName() + ": " + re.getMessage());
+            run(session, input, System.out);
+        }
+    }
+    
+    private static final String BATCH_FLAG = "--batch";
+    private static final String PARALLEL_FLAG = "--parallel";
+    
+    private static void batch(String[] args) throws IOException {
+        boolean parallel = false;
+        String file = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals(PARALLEL_FLAG)) {
+                parallel = true;
+            } else if (file == null) {
+                file = args[i];
+            } else {
+                throw new CommandSyntaxException("usage: --batch [--parallel] [file]");
+            }
+        }
+        final BatchProcessor processor = parallel
+                ? new BatchProcessor(ForkJoinPool.commonPool())
+                : new BatchProcessor();
+        final InputStream input = file == null ? System.in : new FileInputStream(file);
+        try (Reader in = new InputStreamReader(input, StandardCharsets.UTF_8);
+                Writer out = new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8)) {
+            processor.process(in, out);
+        }
+    }
+    
+    /**
+     * Carry out one input line against a session and write its output line.
+     * @param session the session whose current expression the line reads and may replace
+     * @param input an expression, or a !d/d or !simplify command
+     * @param out receives the result, or a description of what was wrong, and a newline
+     * @throws IOException if out does
+     */
+    static void run(Session session, String input, Appendable out) throws IOException {
+        try {
+            final Expression output;
+            
+            if (input.startsWith(DIFFERENTIATE_PREFIX)) {
+                final String variable = parseDifferentiate(input);
+                output = session.differentiate(variable).current();
+            } else if (input.startsWith(SIMPLIFY_PREFIX)) {
+                final Environment environment = parseSimpify(input);
+                output = session.simplify(environment);
+                // ... but don't change the current expression
+            } else {
+                output = session.enter(input).current();
             }
+            
+            output.appendTo(out);
+        } catch (NoSuchElementException nse) {
+            // the session had no current expression
+            out.append("must enter an expression before using this command");
+        } catch (RuntimeException re) {
+            out.append(re.getClass().getName()).append(": ").append(String.valueOf(re.getMessage()));
         }
+        out.append('\n');
+    }
+    
+    /**
+     * @param input a line of input
+     * @return true if and only if input is an expression rather than a command, so carrying
+     *         it out does not depend on the current expression
+     */
+    static boolean isExpression(String input) {
+        return !input.startsWith(DIFFERENTIATE_PREFIX) && !input.startsWith(SIMPLIFY_PREFIX);
     }
  
     private static final String DIFFERENTIATE_PREFIX = "!d/d";
     private static final String VARIABLE = "[A-Za-z]+";
     private static final String DIFFERENTIATE = DIFFERENTIATE_PREFIX + "(" + VARIABLE + ") *";
+    private static final Pattern DIFFERENTIATE_PATTERN = Pattern.compile(DIFFERENTIATE);
 
     private static String parseDifferentiate(final String input) {
-        final Matcher commandMatcher = Pattern.compile(DIFFERENTIATE).matcher(input);
+        final Matcher commandMatcher = DIFFERENTIATE_PATTERN.matcher(input);
         if (!commandMatcher.matches()) {
             throw new CommandSyntaxException("usage: !d/d must be followed by a variable name");
         }
@@ -80,22 +144,23 @@ public class Main {
     private static final String SIMPLIFY_PREFIX = "!simplify";
     private static final String ASSIGNMENT = "(" + VARIABLE + ") *= *([^ ]+)";
     private static final String SIMPLIFY = SIMPLIFY_PREFIX + "( +" + ASSIGNMENT + ")* *";    
+    private static final Pattern SIMPLIFY_PATTERN = Pattern.compile(SIMPLIFY);
+    private static final Pattern ASSIGNMENT_PATTERN = Pattern.compile(ASSIGNMENT);
 
-    private static Map<String,Double> parseSimpify(final String input) {
-        final Matcher commandMatcher = Pattern.compile(SIMPLIFY).matcher(input);
+    private static Environment parseSimpify(final String input) {
+        final Matcher commandMatcher = SIMPLIFY_PATTERN.matcher(input);
         if (!commandMatcher.matches()) {
             throw new CommandSyntaxException("usage: !simplify var1=val1 var2=val2 ...");
         }
         
-        final Map<String,Double> environment = new HashMap<>();
-        final Matcher argumentMatcher = Pattern.compile(ASSIGNMENT).matcher(input);
+        final Environment environment = new Environment();
+        final Matcher argumentMatcher = ASSIGNMENT_PATTERN.matcher(input);
         while (argumentMatcher.find()) {
             final String variable = argumentMatcher.group(1);
-            final double value = Double.valueOf(argumentMatcher.group(2));
-            environment.put(variable, value);
+            final double value = Double.parseDouble(argumentMatcher.group(2));
+            environment.bind(variable, value);
         }
 
-        System.out.println(environment);
         return environment;
     }
     
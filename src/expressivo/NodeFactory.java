@@ -0,0 +1,196 @@
+package expressivo;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Hash-consing factory for Expression nodes.
+ *
+ * Every operator and variable node handed out by this factory is canonical: two calls with
+ * structurally-equal arguments return the same object, so equal subtrees are shared rather
+ * than copied and equals() can stop at the first identical pair of references. The table only
+ * holds weak references, so nodes that are no longer used elsewhere are still garbage collected.
+ *
+ * The constructors of Number, Variable, Plus, Times, Sum and Product stay public and still build
+ * fresh, uninterned nodes; parsing, differentiate and simplify all go through this factory.
+ */
+public class NodeFactory {
+
+    // Rep: for each variant, STRIPES independent weak tables, each guarded by its own lock,
+    //      mapping a canonical node to a weak reference to itself
+    private static final int STRIPES = 16;
+    private static final int VARIANTS = 5;
+    private static final Map<Expression, WeakReference<Expression>>[][] tables = newTables();
+
+    // Abstraction Function: Represents the set of canonical nodes currently alive
+    //
+    // Rep Invariant: a node is only ever stored in tables[variant(node)][stripe(node.hashCode())].
+    //                Variants get separate tables because a Sum equals the Plus chain it stands
+    //                for, and intern() must hand back a node of the class it was given.
+    //
+    // Safety from rep exposure argument: tables is private and only reached through intern()
+
+    // Number leaves compare in O(1) and have no children to share, so only small integers are
+    // kept canonical; putting every folded constant from simplify() through the weak tables
+    // costs far more than the leaf it would save.
+    private static final int SMALL_INTEGERS = 256;
+    private static final Number[] smallIntegers = newSmallIntegers();
+
+    private NodeFactory() {
+        // not instantiable
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Map<Expression, WeakReference<Expression>>[][] newTables() {
+        Map<Expression, WeakReference<Expression>>[][] result = new Map[VARIANTS][STRIPES];
+        for (int v = 0; v < VARIANTS; v++) {
+            for (int i = 0; i < STRIPES; i++) {
+                result[v][i] = new WeakHashMap<>();
+            }
+        }
+        return result;
+    }
+
+    private static Number[] newSmallIntegers() {
+        Number[] result = new Number[SMALL_INTEGERS];
+        for (int i = 0; i < SMALL_INTEGERS; i++) {
+            result[i] = new Number(i);
+        }
+        return result;
+    }
+
+    /**
+     * @param n a nonnegative number
+     * @return a Number with value n; the canonical one if n is a small integer
+     */
+    public static Number number(double n) {
+        if (isSmallInteger(n)) {
+            return smallIntegers[(int) n];
+        }
+        return new Number(n);
+    }
+
+    /**
+     * @return true if and only if n is one of the canonical small integers; negative numbers
+     *         and -0.0 (which prints differently from 0.0) are not
+     */
+    private static boolean isSmallInteger(double n) {
+        return n >= 0 && n < SMALL_INTEGERS && n == (int) n
+                && Double.doubleToRawLongBits(n) != Double.doubleToRawLongBits(-0.0);
+    }
+
+    /**
+     * @param name a case-sensitive nonempty string of letters
+     * @return the canonical Variable called name
+     */
+    public static Variable variable(String name) {
+        return intern(new Variable(name));
+    }
+
+    /**
+     * @param left the left operand
+     * @param right the right operand
+     * @return the canonical Plus of the canonical forms of left and right
+     */
+    public static Plus plus(Expression left, Expression right) {
+        return intern(new Plus(intern(left), intern(right)));
+    }
+
+    /**
+     * @param left the left factor
+     * @param right the right factor
+     * @return the canonical Times of the canonical forms of left and right
+     */
+    public static Times times(Expression left, Expression right) {
+        return intern(new Times(intern(left), intern(right)));
+    }
+
+    /**
+     * @param terms the terms to add, left to right; at least one
+     * @return the only term if there is one, the canonical Plus of two terms, or else the
+     *         canonical Sum of the canonical forms of terms
+     */
+    public static Expression sum(List<? extends Expression> terms) {
+        switch (terms.size()) {
+        case 0:
+            throw new IllegalArgumentException("a sum needs at least one term");
+        case 1:
+            return intern(terms.get(0));
+        case 2:
+            return plus(terms.get(0), terms.get(1));
+        default:
+            return intern(new Sum(internAll(terms)));
+        }
+    }
+
+    /**
+     * @param factors the factors to multiply, left to right; at least one
+     * @return the only factor if there is one, the canonical Times of two factors, or else the
+     *         canonical Product of the canonical forms of factors
+     */
+    public static Expression product(List<? extends Expression> factors) {
+        switch (factors.size()) {
+        case 0:
+            throw new IllegalArgumentException("a product needs at least one factor");
+        case 1:
+            return intern(factors.get(0));
+        case 2:
+            return times(factors.get(0), factors.get(1));
+        default:
+            return intern(new Product(internAll(factors)));
+        }
+    }
+
+    private static List<Expression> internAll(List<? extends Expression> nodes) {
+        List<Expression> result = new ArrayList<>(nodes.size());
+        for (Expression node : nodes) {
+            result.add(intern(node));
+        }
+        return result;
+    }
+
+    /**
+     * @param node any expression
+     * @return the canonical node structurally equal to node, which is node itself if no equal
+     *         node has been interned yet. Number leaves other than small integers are returned
+     *         as they are, see number(). Children of a newly interned node are not re-interned,
+     *         so callers building trees bottom-up should intern the children first.
+     */
+    @SuppressWarnings("unchecked")
+    public static <E extends Expression> E intern(E node) {
+        if (node instanceof Number) {
+            double n = node.getValue();
+            return isSmallInteger(n) ? (E) smallIntegers[(int) n] : node;
+        }
+        Map<Expression, WeakReference<Expression>> table = tables[variant(node)][stripe(node.hashCode())];
+        synchronized (table) {
+            WeakReference<Expression> ref = table.get(node);
+            if (ref != null) {
+                Expression existing = ref.get();
+                if (existing != null) {
+                    // nodes in one table are all of the same variant
+                    return (E) existing;
+                }
+            }
+            table.put(node, new WeakReference<Expression>(node));
+            return node;
+        }
+    }
+
+    private static int variant(Expression node) {
+        if (node instanceof Plus) return 1;
+        if (node instanceof Times) return 2;
+        if (node instanceof Sum) return 3;
+        if (node instanceof Product) return 4;
+        return 0;
+    }
+
+    private static int stripe(int hash) {
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+
+}
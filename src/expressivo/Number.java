@@ -32,7 +32,7 @@ public class Number implements Expression {
      */
     public Expression differentiate(Variable x) {
         checkRep();
-        return new Number(0);
+        return NodeFactory.number(0);
     }
     
     /**
@@ -47,6 +47,12 @@ public class Number implements Expression {
         return this;
     }
     
+    @Override
+    public Expression simplify(Environment environment) {
+        checkRep();
+        return this;
+    }
+    
 
     /**
      * @return a parsable representation of this expression, such that
@@ -66,6 +72,7 @@ public class Number implements Expression {
     @Override
     public boolean equals(Object thatObject) {
         checkRep();
+        if (this == thatObject) return true;
         if (!(thatObject instanceof Number)) return false;
         Number thatVar = (Number) thatObject;
         return this.n == thatVar.n;
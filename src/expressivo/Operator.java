@@ -0,0 +1,91 @@
+package expressivo;
+
+/**
+ * The operator variants of Expression, binary (Plus, Times) and n-ary (Sum, Product), seen
+ * uniformly as an operation applied to an ordered list of operands.
+ *
+ * Binary and n-ary nodes of the same operation are interchangeable: Sum(a, b, c) means
+ * ((a+b)+c), and equals(), hashCode() and toString() treat it exactly like that Plus chain.
+ */
+abstract class Operator implements Expression {
+
+    /**
+     * @return true for + (Plus, Sum), false for * (Times, Product)
+     */
+    abstract boolean isSum();
+
+    /**
+     * @return the number of operands, at least 2
+     */
+    abstract int arity();
+
+    /**
+     * @param i index of an operand, 0 <= i < arity()
+     * @return the i'th operand from the left
+     */
+    abstract Expression child(int i);
+
+    /**
+     * @return the variables appearing in this subtree
+     */
+    abstract VariableSet variables();
+
+    /**
+     * @return true if simplify() with no variables of this subtree bound returns an expression
+     *         equal to this one, i.e. no operator in the subtree has two leading operands that
+     *         fold into one number
+     */
+    abstract boolean stable();
+
+    /**
+     * @param node any expression
+     * @return the variables appearing in node
+     */
+    static VariableSet variablesOf(Expression node) {
+        if (node instanceof Operator) {
+            return ((Operator) node).variables();
+        } else if (node instanceof Variable) {
+            return ((Variable) node).variables();
+        }
+        return VariableSet.EMPTY;
+    }
+
+    /**
+     * @param first the first operand of an operator node
+     * @param second the second operand of that node
+     * @param rest true if and only if every operand of that node is stable
+     * @return whether that node is stable, see stable()
+     */
+    static boolean stableOf(Expression first, Expression second, boolean rest) {
+        return rest && !(first.hasValue() && second.hasValue());
+    }
+
+    /**
+     * @param node any expression
+     * @return true if node is a leaf or a stable operator
+     */
+    static boolean stableOf(Expression node) {
+        return !(node instanceof Operator) || ((Operator) node).stable();
+    }
+
+    /**
+     * @param that any object
+     * @return true if and only if that is an operator node structurally equal to this one,
+     *         where n-ary nodes compare as their left-folded binary form
+     */
+    final boolean operatorEquals(Object that) {
+        if (this == that) return true;
+        if (!(that instanceof Operator)) return false;
+        Operator op = (Operator) that;
+        if (op.isSum() != isSum() || op.hashCode() != hashCode()) return false;
+        // common when interning: a new node over canonical operands meets the canonical node
+        if (op.arity() == arity()) {
+            int i = 0;
+            while (i < arity() && child(i) == op.child(i)) {
+                i++;
+            }
+            if (i == arity()) return true;
+        }
+        return Traversal.equal(this, op);
+    }
+}
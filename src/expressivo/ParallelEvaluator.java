@@ -0,0 +1,367 @@
+package expressivo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+
+/**
+ * Evaluates large batches on a fork-join pool.
+ *
+ * Work is split in halves until a piece holds at most chunkSize rows (or expressions), and each
+ * piece writes into its own range of a shared result array, so results always come back in
+ * input order however the pool schedules the pieces.
+ */
+public class ParallelEvaluator {
+
+    /** default rows or expressions per leaf task */
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+    // Rep: the pool tasks run on and the largest piece handled by a single task
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+    // Abstraction Function: Represents a strategy for splitting batches into tasks of at most
+    //                       chunkSize items each, run on pool
+    //
+    // Rep Invariant: chunkSize >= 1
+    //
+    // Safety from rep exposure argument: fields are final; the pool is shared by design
+
+    /**
+     * Make an evaluator on the common pool with the default chunk size.
+     */
+    public ParallelEvaluator() {
+        this(ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param pool the pool to run tasks on
+     * @param chunkSize largest number of rows or expressions handled by one task, at least 1
+     */
+    public ParallelEvaluator(ForkJoinPool pool, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunk size must be positive: " + chunkSize);
+        }
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert this.pool != null;
+        assert this.chunkSize >= 1;
+    }
+
+    /**
+     * Evaluate an expression for every row of a columnar input.
+     * @param expression the expression to evaluate
+     * @param columns maps every variable of expression to a column of at least rows values
+     * @param rows number of rows to evaluate
+     * @return the value of expression for each row, in row order
+     * @throws IllegalArgumentException if some variable of expression has no column, rows is
+     *         negative, or some column of a variable of expression has fewer than rows values
+     */
+    public double[] evaluateColumns(Expression expression, Map<String, double[]> columns, int rows) {
+        checkRep();
+        // the block loop interprets the code, so no generated class is needed
+        CompiledExpression compiled = CompiledExpression.compile(expression);
+        double[][] slotColumns = compiled.columnsFor(columns);
+        checkRows(slotColumns, rows);
+        double[] output = new double[rows];
+        this.pool.invoke(new ColumnTask(compiled, slotColumns, output, 0, rows, this.chunkSize));
+        return output;
+    }
+
+    /**
+     * Differentiate an expression along one direction at every row of a columnar input.
+     * @param expression the expression to differentiate
+     * @param columns maps every variable of expression to a column of at least rows values
+     * @param direction maps variables to components of the direction; others have component 0
+     * @param rows number of rows to evaluate
+     * @return the directional derivative of expression at each row, in row order
+     * @throws IllegalArgumentException if some variable of expression has no column, rows is
+     *         negative, or some column of a variable of expression has fewer than rows values
+     */
+    public double[] derivativeColumns(Expression expression, Map<String, double[]> columns,
+            Map<String, Double> direction, int rows) {
+        checkRep();
+        DualEvaluator dual = DualEvaluator.of(CompiledExpression.compile(expression));
+        double[][] slotColumns = dual.getCompiled().columnsFor(columns);
+        checkRows(slotColumns, rows);
+        double[] output = new double[rows];
+        this.pool.invoke(new DerivativeColumnTask(dual, slotColumns, dual.directionFor(direction),
+                output, 0, rows, this.chunkSize));
+        return output;
+    }
+
+    /**
+     * Check a row count before any task reads the columns, so a bad count fails here rather
+     * than inside a pool worker.
+     * @param columns one column per slot
+     * @param rows number of rows to read from each column
+     * @throws IllegalArgumentException if rows is negative or some column is shorter
+     */
+    private static void checkRows(double[][] columns, int rows) {
+        if (rows < 0) {
+            throw new IllegalArgumentException("rows must not be negative: " + rows);
+        }
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].length < rows) {
+                throw new IllegalArgumentException("column for slot " + i + " has " + columns[i].length
+                        + " values, fewer than " + rows + " rows");
+            }
+        }
+    }
+
+    /**
+     * Evaluate an expression for every binding in a list.
+     * @param expression the expression to evaluate
+     * @param bindings environments binding every variable of expression
+     * @return the value of expression under each binding, in list order
+     * @throws IllegalArgumentException if some binding leaves a variable of expression unbound
+     */
+    public double[] evaluateBindings(Expression expression, List<Map<String, Double>> bindings) {
+        checkRep();
+        CompiledExpression compiled = BytecodeCompiler.compile(expression);
+        double[] output = new double[bindings.size()];
+        this.pool.invoke(new BindingTask(compiled, bindings, output, 0, bindings.size(), this.chunkSize));
+        return output;
+    }
+
+    /**
+     * Evaluate an expression for every id-indexed environment in a list.
+     * @param expression the expression to evaluate
+     * @param environments environments binding every variable of expression
+     * @return the value of expression under each environment, in list order
+     * @throws IllegalArgumentException if some environment leaves a variable of expression unbound
+     */
+    public double[] evaluateEnvironments(Expression expression, List<Environment> environments) {
+        checkRep();
+        CompiledExpression compiled = BytecodeCompiler.compile(expression);
+        double[] output = new double[environments.size()];
+        this.pool.invoke(new EnvironmentTask(compiled, environments, output, 0, environments.size(), this.chunkSize));
+        return output;
+    }
+
+    /**
+     * Apply an operation to independent expressions in parallel.
+     * @param expressions the expressions to process
+     * @param operation applied once to each expression, e.g. e -> e.simplify(environment);
+     *        must be safe to call from several threads at once
+     * @return operation's result for each expression, in list order
+     */
+    public <R> List<R> map(List<? extends Expression> expressions, Function<? super Expression, ? extends R> operation) {
+        checkRep();
+        Expression[] input = expressions.toArray(new Expression[expressions.size()]);
+        Object[] output = new Object[input.length];
+        this.pool.invoke(new MapTask(input, operation, output, 0, input.length, this.chunkSize));
+        List<R> result = new ArrayList<>(output.length);
+        for (Object o : output) {
+            @SuppressWarnings("unchecked")
+            R r = (R) o;
+            result.add(r);
+        }
+        return result;
+    }
+
+    /**
+     * Split [from, to) in halves until pieces fit in chunkSize, running leaf() on each piece.
+     */
+    private abstract static class RangeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1;
+
+        final int from;
+        final int to;
+        final int chunkSize;
+
+        RangeTask(int from, int to, int chunkSize) {
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunkSize) {
+                leaf();
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(split(from, middle), split(middle, to));
+        }
+
+        abstract RangeTask split(int from, int to);
+
+        abstract void leaf();
+    }
+
+    private static class ColumnTask extends RangeTask {
+
+        private static final long serialVersionUID = 1;
+
+        private final CompiledExpression compiled;
+        private final double[][] columns;
+        private final double[] output;
+
+        ColumnTask(CompiledExpression compiled, double[][] columns, double[] output, int from, int to, int chunkSize) {
+            super(from, to, chunkSize);
+            this.compiled = compiled;
+            this.columns = columns;
+            this.output = output;
+        }
+
+        @Override
+        RangeTask split(int from, int to) {
+            return new ColumnTask(compiled, columns, output, from, to, chunkSize);
+        }
+
+        @Override
+        void leaf() {
+            compiled.evaluateColumns(columns, from, to, output);
+        }
+    }
+
+    private static class DerivativeColumnTask extends RangeTask {
+
+        private static final long serialVersionUID = 1;
+
+        private final DualEvaluator dual;
+        private final double[][] columns;
+        private final double[] direction;
+        private final double[] output;
+
+        DerivativeColumnTask(DualEvaluator dual, double[][] columns, double[] direction, double[] output,
+                int from, int to, int chunkSize) {
+            super(from, to, chunkSize);
+            this.dual = dual;
+            this.columns = columns;
+            this.direction = direction;
+            this.output = output;
+        }
+
+        @Override
+        RangeTask split(int from, int to) {
+            return new DerivativeColumnTask(dual, columns, direction, output, from, to, chunkSize);
+        }
+
+        @Override
+        void leaf() {
+            dual.derivativeColumns(columns, direction, from, to, output);
+        }
+    }
+
+    private static class BindingTask extends RangeTask {
+
+        private static final long serialVersionUID = 1;
+
+        private final CompiledExpression compiled;
+        private final List<Map<String, Double>> bindings;
+        private final double[] output;
+
+        BindingTask(CompiledExpression compiled, List<Map<String, Double>> bindings, double[] output, int from, int to, int chunkSize) {
+            super(from, to, chunkSize);
+            this.compiled = compiled;
+            this.bindings = bindings;
+            this.output = output;
+        }
+
+        @Override
+        RangeTask split(int from, int to) {
+            return new BindingTask(compiled, bindings, output, from, to, chunkSize);
+        }
+
+        @Override
+        void leaf() {
+            ExpressionFunction function = compiled.function();
+            List<String> variables = compiled.getVariables();
+            double[] slots = new double[variables.size()];
+            for (int r = from; r < to; r++) {
+                Map<String, Double> binding = bindings.get(r);
+                for (int s = 0; s < slots.length; s++) {
+                    Double value = binding.get(variables.get(s));
+                    if (value == null) {
+                        throw new IllegalArgumentException("unbound variable in row " + r + ": " + variables.get(s));
+                    }
+                    slots[s] = value;
+                }
+                output[r] = function.evaluate(slots);
+            }
+        }
+    }
+
+    private static class EnvironmentTask extends RangeTask {
+
+        private static final long serialVersionUID = 1;
+
+        private final CompiledExpression compiled;
+        private final List<Environment> environments;
+        private final double[] output;
+
+        EnvironmentTask(CompiledExpression compiled, List<Environment> environments, double[] output, int from, int to, int chunkSize) {
+            super(from, to, chunkSize);
+            this.compiled = compiled;
+            this.environments = environments;
+            this.output = output;
+        }
+
+        @Override
+        RangeTask split(int from, int to) {
+            return new EnvironmentTask(compiled, environments, output, from, to, chunkSize);
+        }
+
+        @Override
+        void leaf() {
+            ExpressionFunction function = compiled.function();
+            List<String> variables = compiled.getVariables();
+            int[] ids = new int[variables.size()];
+            for (int s = 0; s < ids.length; s++) {
+                ids[s] = SymbolTable.id(variables.get(s));
+            }
+            double[] slots = new double[ids.length];
+            for (int r = from; r < to; r++) {
+                Environment environment = environments.get(r);
+                for (int s = 0; s < slots.length; s++) {
+                    if (!environment.isBound(ids[s])) {
+                        throw new IllegalArgumentException("unbound variable in row " + r + ": " + variables.get(s));
+                    }
+                    slots[s] = environment.get(ids[s]);
+                }
+                output[r] = function.evaluate(slots);
+            }
+        }
+    }
+
+    private static class MapTask extends RangeTask {
+
+        private static final long serialVersionUID = 1;
+
+        private final Expression[] input;
+        private final Function<? super Expression, ?> operation;
+        private final Object[] output;
+
+        MapTask(Expression[] input, Function<? super Expression, ?> operation, Object[] output, int from, int to, int chunkSize) {
+            super(from, to, chunkSize);
+            this.input = input;
+            this.operation = operation;
+            this.output = output;
+        }
+
+        @Override
+        RangeTask split(int from, int to) {
+            return new MapTask(input, operation, output, from, to, chunkSize);
+        }
+
+        @Override
+        void leaf() {
+            for (int i = from; i < to; i++) {
+                output[i] = operation.apply(input[i]);
+            }
+        }
+    }
+
+
+}
@@ -13,23 +13,32 @@ import java.util.Map;
  * You may, however, add additional methods, or strengthen the specs of existing methods.
  * Declare concrete variants of Expression in their own Java source files.
  */
-public class Plus implements Expression {
+public class Plus extends Operator {
     
     // Rep: An addition operator expression
-    private final String plusOp = "+";
     private final Expression left;
     private final Expression right;
+    private final int hash;
+    private final boolean constant;
+    private final VariableSet variables;
+    private final boolean stable;
     
     // Abstraction Function: Represents a mathematical operator expression of the form x + 3
     //                       where x is the left expression branch, 3 is the right branch
     //                       
-    // Rep Invariant: 
+    // Rep Invariant: hash is the combined hash of left and right, constant is true iff both
+    //                have values, variables is the union of theirs and stable is as defined by
+    //                Operator.stable(); all are cached because the tree is immutable
     //
     // Safety from rep exposure argument: Datatype is immutable                
     
     public Plus(Expression left, Expression right) {
         this.left = left;
         this.right = right;
+        this.hash = Hashing.combine(Hashing.PLUS_SEED, left.hashCode(), right.hashCode());
+        this.constant = left.hasValue() && right.hasValue();
+        this.variables = variablesOf(left).union(variablesOf(right));
+        this.stable = stableOf(left, right, stableOf(left) && stableOf(right));
         checkRep();
     }
     
@@ -44,9 +53,7 @@ public class Plus implements Expression {
      */
     public Expression differentiate(Variable v) {
         checkRep();
-        Expression leftDifferential = this.left.differentiate(v);
-        Expression rightDifferential = this.right.differentiate(v);
-        return new Plus(leftDifferential, rightDifferential);
+        return Traversal.differentiate(this, v);
     }
     
     /**
@@ -58,10 +65,18 @@ public class Plus implements Expression {
      */
     public Expression simplify(Map<String,Double> environment) {
         checkRep();
-        Expression leftExpression = this.left.simplify(environment);
-        Expression rightExpression = this.right.simplify(environment);
-        return combineTerms(leftExpression, rightExpression);
-        
+        return Traversal.simplify(this, environment);
+    }
+    
+    /**
+     * Simplify an expression against an id-indexed environment.
+     * @param environment binds variables to numeric (double) values by SymbolTable number.
+     * @return an expression equal to simplify(environment.toMap())
+     */
+    @Override
+    public Expression simplify(Environment environment) {
+        checkRep();
+        return Traversal.simplify(this, environment);
     }
 
     /**
@@ -80,6 +95,31 @@ public class Plus implements Expression {
         return this.right;
     }
     
+    @Override
+    boolean isSum() {
+        return true;
+    }
+    
+    @Override
+    VariableSet variables() {
+        return this.variables;
+    }
+    
+    @Override
+    boolean stable() {
+        return this.stable;
+    }
+    
+    @Override
+    int arity() {
+        return 2;
+    }
+    
+    @Override
+    Expression child(int i) {
+        return i == 0 ? this.left : this.right;
+    }
+    
     /**
      * @return a parsable representation of this expression, such that
      * for all e:Expression, e.equals(Expression.parse(e.toString())).
@@ -87,7 +127,7 @@ public class Plus implements Expression {
     @Override 
     public String toString() {
         checkRep();
-        return "(" + this.left.toString() + plusOp + this.right.toString() + ")"; 
+        return Traversal.toString(this);
     }
 
     /**
@@ -98,9 +138,7 @@ public class Plus implements Expression {
     @Override
     public boolean equals(Object thatObject) {
         checkRep();
-        if (!(thatObject instanceof Plus)) return false;
-        Plus thatExp = (Plus) thatObject; 
-            return (this.left.equals(thatExp.left)) && (this.right.equals(thatExp.right));
+        return operatorEquals(thatObject);
     }
     
     /**
@@ -111,7 +149,7 @@ public class Plus implements Expression {
     @Override
     public int hashCode() {
         checkRep();
-        return left.hashCode() + right.hashCode();
+        return this.hash;
     }
     
     /**
@@ -123,8 +161,8 @@ public class Plus implements Expression {
     public Expression combineTerms(Expression exp1, Expression exp2) {
         checkRep();
         if (exp1.hasValue() && exp2.hasValue()) {
-            return new Number(exp1.getValue() + exp2.getValue());
-        } else return new Plus(exp1, exp2);
+            return NodeFactory.number(exp1.getValue() + exp2.getValue());
+        } else return NodeFactory.plus(exp1, exp2);
     }
     
     public double getValue() {
@@ -137,7 +175,7 @@ public class Plus implements Expression {
      */
     public boolean hasValue() {
         checkRep();
-        return this.left.hasValue() && this.right.hasValue();
+        return this.constant;
     }
     
 
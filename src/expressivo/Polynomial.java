@@ -0,0 +1,460 @@
+package expressivo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * An immutable polynomial in canonical sparse form: a sum of monomials c * x1^e1 * ... * xn^en
+ * with distinct exponent vectors and nonzero coefficients.
+ *
+ * Converting an Expression to a Polynomial multiplies out every product and collects like
+ * terms, so x*2 + x*3 and 5*x become the same polynomial, and converting back produces the
+ * smallest tree for it in a fixed term order.
+ */
+public class Polynomial {
+
+    // Rep: the variables the exponent vectors refer to, and a map from exponent vector to
+    //      coefficient
+    private final String[] variables;
+    private final Map<Monomial, Double> terms;
+
+    // Abstraction Function: Represents the sum over (m, c) in terms of
+    //                       c * variables[0]^m[0] * ... * variables[n-1]^m[n-1]
+    //
+    // Rep Invariant: variables is sorted and has no duplicates; every exponent vector has
+    //                variables.length nonnegative entries; no coefficient is zero
+    //
+    // Safety from rep exposure argument: arrays and the map are never returned or shared
+    //                                    with code outside this class; fromExpression only
+    //                                    mutates intermediate results that no other node or
+    //                                    caller holds
+
+    private Polynomial(String[] variables, Map<Monomial, Double> terms) {
+        this.variables = variables;
+        this.terms = terms;
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert this.variables != null;
+        assert this.terms != null;
+    }
+
+    /**
+     * Exponent vector of a monomial, with its hash cached for use as a map key.
+     */
+    static final class Monomial {
+
+        final int[] exponents;
+        private final int hash;
+
+        Monomial(int[] exponents) {
+            this.exponents = exponents;
+            this.hash = Arrays.hashCode(exponents);
+        }
+
+        int degree() {
+            int degree = 0;
+            for (int e : exponents) {
+                degree += e;
+            }
+            return degree;
+        }
+
+        Monomial times(Monomial that) {
+            int[] product = new int[exponents.length];
+            for (int i = 0; i < product.length; i++) {
+                product[i] = this.exponents[i] + that.exponents[i];
+            }
+            return new Monomial(product);
+        }
+
+        @Override
+        public boolean equals(Object thatObject) {
+            if (!(thatObject instanceof Monomial)) return false;
+            Monomial that = (Monomial) thatObject;
+            return this.hash == that.hash && Arrays.equals(this.exponents, that.exponents);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * @param expression any expression
+     * @return the polynomial equal to expression
+     */
+    public static Polynomial fromExpression(Expression expression) {
+        return fromExpression(expression, Collections.<String, Double>emptyMap());
+    }
+
+    /**
+     * @param expression any expression
+     * @param environment maps variables to values; variables of expression that it binds are
+     *        replaced by their values
+     * @return the polynomial equal to expression after substituting environment
+     * @throws IllegalArgumentException if expression contains a variant other than Number,
+     *         Variable and the operators
+     */
+    public static Polynomial fromExpression(Expression expression, Map<String, Double> environment) {
+        // count the parents of each distinct node, so a node shared by NodeFactory is converted
+        // once and its polynomial dropped once every parent has used it
+        Map<Expression, int[]> uses = new IdentityHashMap<>();
+        TreeSet<String> free = new TreeSet<>();
+        Deque<Expression> pending = new ArrayDeque<>();
+        uses.put(expression, new int[1]);
+        pending.push(expression);
+        while (!pending.isEmpty()) {
+            Expression node = pending.pop();
+            if (node instanceof Operator) {
+                Operator op = (Operator) node;
+                for (int c = 0; c < op.arity(); c++) {
+                    int[] count = uses.get(op.child(c));
+                    if (count == null) {
+                        count = new int[1];
+                        uses.put(op.child(c), count);
+                        pending.push(op.child(c));
+                    }
+                    count[0]++;
+                }
+            } else if (node instanceof Variable && !environment.containsKey(((Variable) node).getName())) {
+                free.add(((Variable) node).getName());
+            }
+        }
+
+        String[] variables = free.toArray(new String[free.size()]);
+        Map<Expression, Polynomial> done = new IdentityHashMap<>();
+        Deque<Expression> stack = new ArrayDeque<>();
+        stack.push(expression);
+        while (!stack.isEmpty()) {
+            Expression node = stack.peek();
+            if (done.containsKey(node)) {
+                stack.pop();
+                continue;
+            }
+            if (node instanceof Number) {
+                done.put(stack.pop(), constant(variables, node.getValue()));
+            } else if (node instanceof Variable) {
+                String name = ((Variable) node).getName();
+                Double value = environment.get(name);
+                if (value != null) {
+                    done.put(stack.pop(), constant(variables, value));
+                } else {
+                    int[] exponents = new int[variables.length];
+                    exponents[Arrays.binarySearch(variables, name)] = 1;
+                    Map<Monomial, Double> terms = new HashMap<>();
+                    terms.put(new Monomial(exponents), 1.0);
+                    done.put(stack.pop(), new Polynomial(variables, terms));
+                }
+            } else if (node instanceof Operator) {
+                Operator op = (Operator) node;
+                boolean ready = true;
+                for (int c = op.arity() - 1; c >= 0; c--) {
+                    if (!done.containsKey(op.child(c))) {
+                        stack.push(op.child(c));
+                        ready = false;
+                    }
+                }
+                if (!ready) {
+                    continue;
+                }
+                stack.pop();
+                Polynomial[] operands = new Polynomial[op.arity()];
+                for (int c = 0; c < operands.length; c++) {
+                    operands[c] = done.get(op.child(c));
+                    if (--uses.get(op.child(c))[0] == 0) {
+                        done.remove(op.child(c));
+                    }
+                }
+                Polynomial result;
+                if (op.isSum()) {
+                    result = sumOperands(op, operands, uses);
+                } else {
+                    result = operands[0];
+                    for (int c = 1; c < operands.length; c++) {
+                        result = result.multiply(operands[c]);
+                    }
+                }
+                done.put(node, result);
+            } else {
+                throw new IllegalArgumentException("unsupported expression variant: " + node.getClass().getName());
+            }
+        }
+        return done.get(expression);
+    }
+
+    /**
+     * Add the operands of a sum node over the same variables, adding into the largest operand
+     * no other node still holds so that a long sum costs time linear in its number of terms;
+     * if every operand is still held elsewhere, the largest is copied first.
+     * @param op the sum node
+     * @param operands the polynomial of each child of op
+     * @param uses for each child of op, how many parents have yet to use its polynomial
+     * @return the sum of operands
+     */
+    private static Polynomial sumOperands(Operator op, Polynomial[] operands, Map<Expression, int[]> uses) {
+        int owned = -1;
+        int largest = 0;
+        for (int c = 0; c < operands.length; c++) {
+            if (operands[c].terms.size() > operands[largest].terms.size()) {
+                largest = c;
+            }
+            if (uses.get(op.child(c))[0] == 0 && occurrences(operands, operands[c]) == 1
+                    && (owned < 0 || operands[c].terms.size() > operands[owned].terms.size())) {
+                owned = c;
+            }
+        }
+        int into = owned >= 0 ? owned : largest;
+        Polynomial sum = owned >= 0
+                ? operands[into]
+                : new Polynomial(operands[into].variables, new HashMap<>(operands[into].terms));
+        for (int c = 0; c < operands.length; c++) {
+            if (c != into) {
+                for (Map.Entry<Monomial, Double> term : operands[c].terms.entrySet()) {
+                    addTerm(sum.terms, term.getKey(), term.getValue());
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return the number of entries of operands that are p itself
+     */
+    private static int occurrences(Polynomial[] operands, Polynomial p) {
+        int count = 0;
+        for (Polynomial operand : operands) {
+            if (operand == p) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Polynomial constant(String[] variables, double value) {
+        Map<Monomial, Double> terms = new HashMap<>();
+        if (value != 0) {
+            terms.put(new Monomial(new int[variables.length]), value);
+        }
+        return new Polynomial(variables, terms);
+    }
+
+    /**
+     * @return the sum of this and that
+     */
+    public Polynomial add(Polynomial that) {
+        if (this.variables != that.variables && !Arrays.equals(this.variables, that.variables)) {
+            String[] union = union(this.variables, that.variables);
+            return this.over(union).add(that.over(union));
+        }
+        Map<Monomial, Double> sum = new HashMap<>(this.terms);
+        for (Map.Entry<Monomial, Double> term : that.terms.entrySet()) {
+            addTerm(sum, term.getKey(), term.getValue());
+        }
+        return new Polynomial(this.variables, sum);
+    }
+
+    /**
+     * @return the product of this and that, multiplied out
+     */
+    public Polynomial multiply(Polynomial that) {
+        if (this.variables != that.variables && !Arrays.equals(this.variables, that.variables)) {
+            String[] union = union(this.variables, that.variables);
+            return this.over(union).multiply(that.over(union));
+        }
+        Map<Monomial, Double> product = new HashMap<>();
+        for (Map.Entry<Monomial, Double> left : this.terms.entrySet()) {
+            for (Map.Entry<Monomial, Double> right : that.terms.entrySet()) {
+                addTerm(product, left.getKey().times(right.getKey()), left.getValue() * right.getValue());
+            }
+        }
+        return new Polynomial(this.variables, product);
+    }
+
+    /**
+     * Add c * m into terms, dropping the term if its coefficient cancels to zero.
+     */
+    private static void addTerm(Map<Monomial, Double> terms, Monomial m, double c) {
+        Double existing = terms.get(m);
+        double sum = existing == null ? c : existing + c;
+        if (sum == 0) {
+            terms.remove(m);
+        } else {
+            terms.put(m, sum);
+        }
+    }
+
+    private static String[] union(String[] a, String[] b) {
+        TreeSet<String> union = new TreeSet<>(Arrays.asList(a));
+        union.addAll(Arrays.asList(b));
+        return union.toArray(new String[union.size()]);
+    }
+
+    /**
+     * @param wider a sorted superset of this.variables
+     * @return this polynomial with exponent vectors laid out over wider
+     */
+    private Polynomial over(String[] wider) {
+        int[] position = new int[this.variables.length];
+        for (int i = 0; i < position.length; i++) {
+            position[i] = Arrays.binarySearch(wider, this.variables[i]);
+        }
+        Map<Monomial, Double> moved = new HashMap<>();
+        for (Map.Entry<Monomial, Double> term : this.terms.entrySet()) {
+            int[] exponents = new int[wider.length];
+            for (int i = 0; i < position.length; i++) {
+                exponents[position[i]] = term.getKey().exponents[i];
+            }
+            moved.put(new Monomial(exponents), term.getValue());
+        }
+        return new Polynomial(wider, moved);
+    }
+
+    /**
+     * Differentiate term by term: c * v^e becomes (c*e) * v^(e-1), and terms without v vanish.
+     * @param variable the variable to differentiate by
+     * @return the derivative of this polynomial with respect to variable, in normal form
+     */
+    public Polynomial differentiate(String variable) {
+        int index = Arrays.binarySearch(this.variables, variable);
+        Map<Monomial, Double> derivative = new HashMap<>();
+        if (index >= 0) {
+            for (Map.Entry<Monomial, Double> term : this.terms.entrySet()) {
+                int exponent = term.getKey().exponents[index];
+                if (exponent > 0) {
+                    int[] exponents = term.getKey().exponents.clone();
+                    exponents[index] = exponent - 1;
+                    addTerm(derivative, new Monomial(exponents), term.getValue() * exponent);
+                }
+            }
+        }
+        return new Polynomial(this.variables, derivative);
+    }
+
+    /**
+     * @return the number of terms with nonzero coefficients
+     */
+    public int termCount() {
+        return this.terms.size();
+    }
+
+    /**
+     * @return the variables with a nonzero exponent in some term, in sorted order
+     */
+    public List<String> getVariables() {
+        List<String> used = new ArrayList<>();
+        for (int i = 0; i < this.variables.length; i++) {
+            for (Monomial m : this.terms.keySet()) {
+                if (m.exponents[i] != 0) {
+                    used.add(this.variables[i]);
+                    break;
+                }
+            }
+        }
+        return used;
+    }
+
+    /**
+     * @return the terms of this polynomial ordered by descending total degree, then by
+     *         descending exponent of each variable in sorted order
+     */
+    private List<Map.Entry<Monomial, Double>> orderedTerms() {
+        List<Map.Entry<Monomial, Double>> ordered = new ArrayList<>(this.terms.entrySet());
+        Collections.sort(ordered, new Comparator<Map.Entry<Monomial, Double>>() {
+            @Override
+            public int compare(Map.Entry<Monomial, Double> a, Map.Entry<Monomial, Double> b) {
+                int byDegree = Integer.compare(b.getKey().degree(), a.getKey().degree());
+                if (byDegree != 0) {
+                    return byDegree;
+                }
+                for (int i = 0; i < a.getKey().exponents.length; i++) {
+                    int byExponent = Integer.compare(b.getKey().exponents[i], a.getKey().exponents[i]);
+                    if (byExponent != 0) {
+                        return byExponent;
+                    }
+                }
+                return 0;
+            }
+        });
+        return ordered;
+    }
+
+    /**
+     * @return the smallest expression tree for this polynomial: a left-folded sum of terms,
+     *         each a left-folded product of its coefficient (omitted when 1) and its variables
+     *         repeated by exponent; 0 if there are no terms
+     */
+    public Expression toExpression() {
+        Expression sum = null;
+        for (Map.Entry<Monomial, Double> term : orderedTerms()) {
+            Expression product = term.getValue() == 1.0 ? null : NodeFactory.number(term.getValue());
+            int[] exponents = term.getKey().exponents;
+            for (int i = 0; i < exponents.length; i++) {
+                Variable v = NodeFactory.variable(this.variables[i]);
+                for (int e = 0; e < exponents[i]; e++) {
+                    product = product == null ? v : NodeFactory.times(product, v);
+                }
+            }
+            if (product == null) {
+                product = NodeFactory.number(1);
+            }
+            sum = sum == null ? product : NodeFactory.plus(sum, product);
+        }
+        return sum == null ? NodeFactory.number(0) : sum;
+    }
+
+    /**
+     * @param thatObject any object
+     * @return true if and only if thatObject is a Polynomial with the same terms and coefficients
+     */
+    @Override
+    public boolean equals(Object thatObject) {
+        if (!(thatObject instanceof Polynomial)) return false;
+        Polynomial that = (Polynomial) thatObject;
+        if (!Arrays.equals(this.variables, that.variables)) {
+            String[] union = union(this.variables, that.variables);
+            return this.over(union).terms.equals(that.over(union).terms);
+        }
+        return this.terms.equals(that.terms);
+    }
+
+    /**
+     * @return hash code consistent with equals()
+     */
+    @Override
+    public int hashCode() {
+        // built from variable names rather than positions, so it agrees for equal polynomials
+        // over different variable tables, and allocates nothing
+        int hash = 0;
+        for (Map.Entry<Monomial, Double> term : this.terms.entrySet()) {
+            int monomial = 0;
+            int[] exponents = term.getKey().exponents;
+            for (int i = 0; i < exponents.length; i++) {
+                if (exponents[i] != 0) {
+                    monomial = 31 * monomial + (this.variables[i].hashCode() ^ exponents[i]);
+                }
+            }
+            hash += monomial ^ Double.hashCode(term.getValue());
+        }
+        return hash;
+    }
+
+    /**
+     * @return the expression form of this polynomial, see toExpression()
+     */
+    @Override
+    public String toString() {
+        return toExpression().toString();
+    }
+}
@@ -0,0 +1,177 @@
+package expressivo;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable data type representing the product of two or more expressions, stored flat.
+ *
+ * Product(a, b, c) is the same expression as Times(Times(a, b), c): the two are equal, have the
+ * same hash code and print the same, but a long product costs one node and one array instead of
+ * a chain of binary nodes as deep as the number of factors.
+ */
+public class Product extends Operator {
+    
+    // Rep: the factors, left to right
+    private final Expression[] factors;
+    private final int hash;
+    private final boolean constant;
+    private final VariableSet variables;
+    private final boolean stable;
+    
+    // Abstraction Function: Represents (((factors[0] * factors[1]) * factors[2]) * ... * factors[n-1])
+    //                       
+    // Rep Invariant: factors.length >= 2 and no factor is null; hash is the left fold of
+    //                Hashing.combine over the factors' hashes, constant is true iff every factor
+    //                has a value, variables is the union of theirs and stable is as defined
+    //                by Operator.stable(); all are cached because the tree is immutable
+    //
+    // Safety from rep exposure argument: factors is a private copy, only exposed as an
+    //                                    unmodifiable list
+    
+    /**
+     * @param factors the factors to multiply, left to right; at least two
+     */
+    public Product(List<? extends Expression> factors) {
+        this.factors = factors.toArray(new Expression[factors.size()]);
+        if (this.factors.length < 2) {
+            throw new IllegalArgumentException("a product needs at least two factors");
+        }
+        int hash = this.factors[0].hashCode();
+        boolean constant = this.factors[0].hasValue();
+        VariableSet variables = variablesOf(this.factors[0]);
+        boolean stable = stableOf(this.factors[0]);
+        for (int i = 1; i < this.factors.length; i++) {
+            hash = Hashing.combine(Hashing.TIMES_SEED, hash, this.factors[i].hashCode());
+            constant = constant && this.factors[i].hasValue();
+            variables = variables.union(variablesOf(this.factors[i]));
+            stable = stable && stableOf(this.factors[i]);
+        }
+        this.hash = hash;
+        this.constant = constant;
+        this.variables = variables;
+        this.stable = stableOf(this.factors[0], this.factors[1], stable);
+        checkRep();
+    }
+    
+    private void checkRep() {
+        assert this.factors.length >= 2;
+    }
+    
+    /**
+     * @param a variable which this Expression object will be differentiated with respect to
+     * @return a new differentiated Expression object
+     */
+    public Expression differentiate(Variable v) {
+        checkRep();
+        return Traversal.differentiate(this, v);
+    }
+    
+    /**
+     * Simplify an expression.  
+     * @param environment A mapping of Variables to numeric (double) values.
+     * @return A new Expression object containing the simplified expression. Constant expressions will be reduced to a single number, with
+     * no remaining operators. Variable expressions will remain in their current form unless the
+     * environment allows for substitution.
+     */
+    public Expression simplify(Map<String,Double> environment) {
+        checkRep();
+        return Traversal.simplify(this, environment);
+    }
+    
+    /**
+     * Simplify an expression against an id-indexed environment.
+     * @param environment binds variables to numeric (double) values by SymbolTable number.
+     * @return an expression equal to simplify(environment.toMap())
+     */
+    @Override
+    public Expression simplify(Environment environment) {
+        checkRep();
+        return Traversal.simplify(this, environment);
+    }
+    
+    /**
+     * @return the factors of this product, left to right.
+     */
+    public List<Expression> getFactors() {
+        checkRep();
+        return Collections.unmodifiableList(Arrays.asList(this.factors));
+    }
+    
+    @Override
+    boolean isSum() {
+        return false;
+    }
+    
+    @Override
+    VariableSet variables() {
+        return this.variables;
+    }
+    
+    @Override
+    boolean stable() {
+        return this.stable;
+    }
+    
+    @Override
+    int arity() {
+        return this.factors.length;
+    }
+    
+    @Override
+    Expression child(int i) {
+        return this.factors[i];
+    }
+    
+    /**
+     * @return a parsable representation of this expression, such that
+     * for all e:Expression, e.equals(Expression.parse(e.toString())).
+     */
+    @Override 
+    public String toString() {
+        checkRep();
+        return Traversal.toString(this);
+    }
+
+    /**
+     * @param thatObject any object
+     * @return true if and only if this and thatObject are structurally-equal
+     * Expressions, as defined in the PS1 handout.
+     */
+    @Override
+    public boolean equals(Object thatObject) {
+        checkRep();
+        return operatorEquals(thatObject);
+    }
+    
+    /**
+     * @return hash code value consistent with the equals() definition of structural
+     * equality, such that for all e1,e2:Expression,
+     *     e1.equals(e2) implies e1.hashCode() == e2.hashCode()
+     */
+    @Override
+    public int hashCode() {
+        checkRep();
+        return this.hash;
+    }
+    
+    /**
+     * @return numeric (double) value if object contains one.
+     */
+    public double getValue() {
+        checkRep();
+        throw new UnsupportedOperationException("Code should never reach here");
+    }
+    
+    /**
+     * @return True if the current expression object contains an integer value.
+     */
+    public boolean hasValue() {
+        checkRep();
+        return this.constant;
+    }
+    
+
+}
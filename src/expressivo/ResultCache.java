@@ -0,0 +1,439 @@
+package expressivo;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A size-bounded, concurrent cache of simplify() and differentiate() results with
+ * frequency-based admission.
+ *
+ * Operator nodes consult the shared instance before rewriting, so calling differentiate(v) or
+ * simplify(environment) again on an equal expression costs one hash lookup. Derivatives are
+ * keyed on (expression, variable). Simplifications are keyed on (expression, environment
+ * restricted to the expression's free variables), so environments that differ only in
+ * variables the expression does not use share one entry.
+ *
+ * Keys compare with equals(), so a Product and the equal chain of Times nodes share an entry.
+ * That is sound only because equal expressions differentiate and simplify to equal, identically
+ * printed results, so which form filled an entry never shows in the output.
+ *
+ * Hashing an expression is O(1) since operator nodes cache their hash, and equal keys built
+ * through NodeFactory are usually the same object, so equals() returns at once.
+ *
+ * Lookups take no lock, so ParallelEvaluator.map() and the parallel batch paths do not
+ * serialize on the cache: a hit reads a ConcurrentHashMap, marks the entry referenced and
+ * counts the key in a frequency sketch. Only storing a new result takes a lock. When the cache
+ * is full, the entry to replace is chosen by CLOCK (entries referenced since the hand last
+ * passed get a second chance), and the new result is admitted only if the sketch has seen its
+ * key more often than the victim's, as in TinyLFU. A stream of one-off keys, such as
+ * simplify() with a different environment per row, therefore cannot push out the few entries
+ * that are used over and over.
+ */
+public class ResultCache {
+
+    /** maximum number of entries in the shared cache unless reconfigured */
+    public static final int DEFAULT_MAXIMUM_SIZE = 1024;
+
+    private static final ResultCache shared = new ResultCache(DEFAULT_MAXIMUM_SIZE);
+
+    // Rep: the entries by key, the same entries in CLOCK order, the bound on their number, an
+    //      estimate of how often each key has been looked up recently, and running statistics
+    private final ConcurrentHashMap<Key, Entry> entries;
+    private final Deque<Entry> clock;
+    private final ReentrantLock evictionLock;
+    private volatile int maximumSize;
+    private volatile FrequencySketch sketch;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    // Abstraction Function: Represents a memo from (expression, variable) to the derivative of
+    //                       expression and from (expression, restricted environment) to its
+    //                       simplification, holding at most maximumSize entries; hits and
+    //                       misses count result lookups since the last resetStats(), evictions
+    //                       counts results dropped for space, whether evicted or not admitted
+    //
+    // Rep Invariant: maximumSize >= 0, and while evictionLock is free, clock holds exactly the
+    //                entries of entries, so entries.size() <= maximumSize
+    //
+    // Safety from rep exposure argument: all fields are private, and the cached expressions
+    //                                   handed out are immutable; clock and the contents of
+    //                                   entries only change while holding evictionLock
+
+    /**
+     * @param maximumSize largest number of entries to hold; 0 disables caching
+     */
+    public ResultCache(int maximumSize) {
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("maximum size must not be negative: " + maximumSize);
+        }
+        this.entries = new ConcurrentHashMap<>();
+        this.clock = new ArrayDeque<>();
+        this.evictionLock = new ReentrantLock();
+        this.maximumSize = maximumSize;
+        this.sketch = new FrequencySketch(maximumSize);
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert this.maximumSize >= 0;
+        assert !this.evictionLock.isHeldByCurrentThread()
+                || this.clock.size() == this.entries.size() && this.entries.size() <= this.maximumSize;
+    }
+
+    /**
+     * @return the cache consulted by Expression.simplify() and Expression.differentiate()
+     */
+    public static ResultCache shared() {
+        return shared;
+    }
+
+    /**
+     * A cached operation and the expression it was applied to.
+     */
+    private static final class Key {
+
+        final Expression expression;
+        final Object argument;
+        final int hash;
+
+        Key(Expression expression, Object argument) {
+            this.expression = expression;
+            this.argument = argument;
+            this.hash = 31 * expression.hashCode() + argument.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object thatObject) {
+            if (!(thatObject instanceof Key)) return false;
+            Key that = (Key) thatObject;
+            return this.hash == that.hash
+                    && this.argument.equals(that.argument)
+                    && this.expression.equals(that.expression);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    /**
+     * A cached result, with the bit CLOCK uses to give recently used entries a second chance.
+     */
+    private static final class Entry {
+
+        final Key key;
+        final Expression value;
+        volatile boolean referenced;
+
+        Entry(Key key, Expression value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A count-min sketch of how often keys have been looked up, with 4-bit counters that are
+     * all halved after every 10 * width increments so the estimate follows recent use.
+     *
+     * Updates are lock-free compare-and-set on words of 16 counters. Concurrent updates can be
+     * lost to a halving in progress, which only makes the estimate slightly low.
+     */
+    private static final class FrequencySketch {
+
+        private static final int[] SEEDS = { 0x97cb3127, 0xb2c3d4e5, 0xc13fa9a9, 0x5a3b4c5d };
+        private static final long HALF_MASK = 0x7777777777777777L;
+
+        // Rep: words of 16 four-bit counters, and increments since the last halving
+        private final AtomicLongArray table;
+        private final int mask;
+        private final int sampleSize;
+        private final AtomicInteger additions;
+
+        // Abstraction Function: Represents the estimate frequency(h) = the minimum over
+        //                       i in 0..3 of counter (i, h), an upper bound on the number of
+        //                       increment(h) calls since about the last halving
+        //
+        // Rep Invariant: table.length() is a power of two and mask == table.length() - 1
+        //
+        // Safety from rep exposure argument: all fields are private and never handed out
+
+        FrequencySketch(int maximumSize) {
+            int width = Integer.highestOneBit(Math.max(16, maximumSize) - 1) << 1;
+            this.table = new AtomicLongArray(width);
+            this.mask = width - 1;
+            this.sampleSize = 10 * width;
+            this.additions = new AtomicInteger();
+        }
+
+        /**
+         * @param hash a key's hash
+         * @param i which of the four counters of the key, 0 to 3
+         * @return the word index in the low 32 bits and the bit offset in the high 32 bits
+         */
+        private long locate(int hash, int i) {
+            int h = (hash + SEEDS[i]) * 0x9e3779b9;
+            h ^= h >>> 16;
+            int offset = ((h >>> 28) & 0xf) << 2;
+            return ((long) offset << 32) | (h & this.mask);
+        }
+
+        /**
+         * @param hash a key's hash
+         * @return the estimated number of recent lookups of keys with this hash, at most 15
+         */
+        int frequency(int hash) {
+            int frequency = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                long location = locate(hash, i);
+                long word = this.table.get((int) location);
+                frequency = Math.min(frequency, (int) (word >>> (location >>> 32)) & 0xf);
+            }
+            return frequency;
+        }
+
+        /**
+         * Count one lookup of a key.
+         * @param hash the key's hash
+         */
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                long location = locate(hash, i);
+                int index = (int) location;
+                int offset = (int) (location >>> 32);
+                while (true) {
+                    long word = this.table.get(index);
+                    if (((word >>> offset) & 0xf) == 15) {
+                        break;
+                    }
+                    if (this.table.compareAndSet(index, word, word + (1L << offset))) {
+                        added = true;
+                        break;
+                    }
+                }
+            }
+            if (added && this.additions.incrementAndGet() == this.sampleSize) {
+                halve();
+            }
+        }
+
+        private void halve() {
+            for (int index = 0; index < this.table.length(); index++) {
+                while (true) {
+                    long word = this.table.get(index);
+                    if (this.table.compareAndSet(index, word, (word >>> 1) & HALF_MASK)) {
+                        break;
+                    }
+                }
+            }
+            this.additions.set(0);
+        }
+    }
+
+    /**
+     * @param expression an expression
+     * @param variable the variable to differentiate by
+     * @return expression.differentiate(variable), computed at most once while cached
+     */
+    Expression differentiate(Operator expression, Variable variable) {
+        Key key = new Key(expression, variable);
+        Expression result = lookup(key);
+        if (result == null) {
+            result = Traversal.differentiateUncached(expression, variable);
+            store(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * @param expression an expression
+     * @param environment binds variables of expression to values; bindings for other variables
+     *        would only split entries that have the same result. Must not be modified after.
+     * @return expression.simplify(environment), computed at most once while cached
+     */
+    Expression simplify(Operator expression, Environment environment) {
+        Key key = new Key(expression, environment);
+        Expression result = lookup(key);
+        if (result == null) {
+            result = Traversal.simplifyUncached(expression, environment);
+            store(key, result);
+        }
+        return result;
+    }
+
+    private Expression lookup(Key key) {
+        this.sketch.increment(key.hash);
+        Entry entry = this.entries.get(key);
+        if (entry == null) {
+            this.misses.increment();
+            return null;
+        }
+        this.hits.increment();
+        if (!entry.referenced) {
+            // only written when it changes, so hot entries are not written by every hit
+            entry.referenced = true;
+        }
+        return entry.value;
+    }
+
+    private void store(Key key, Expression value) {
+        if (this.maximumSize == 0) {
+            return;
+        }
+        this.evictionLock.lock();
+        try {
+            if (this.entries.containsKey(key) || this.maximumSize == 0) {
+                // another thread stored an equal result first, or caching was just disabled
+                return;
+            }
+            if (this.entries.size() >= this.maximumSize) {
+                Entry victim = nextVictim();
+                if (this.sketch.frequency(key.hash) <= this.sketch.frequency(victim.key.hash)) {
+                    // not used more often than the victim: keep the victim and drop the result
+                    this.clock.addLast(victim);
+                    this.evictions.increment();
+                    return;
+                }
+                this.entries.remove(victim.key);
+                this.evictions.increment();
+            }
+            Entry entry = new Entry(key, value);
+            this.entries.put(key, entry);
+            this.clock.addLast(entry);
+            checkRep();
+        } finally {
+            this.evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Advance the CLOCK hand to the first entry not referenced since the hand last passed it,
+     * clearing the referenced bit of each entry passed over. Requires evictionLock.
+     * @return that entry, removed from clock but still in entries
+     */
+    private Entry nextVictim() {
+        while (true) {
+            Entry entry = this.clock.removeFirst();
+            if (!entry.referenced) {
+                return entry;
+            }
+            entry.referenced = false;
+            this.clock.addLast(entry);
+        }
+    }
+
+    /**
+     * Evict entries in CLOCK order until at most size remain. Requires evictionLock.
+     */
+    private void evictTo(int size) {
+        while (this.entries.size() > size) {
+            this.entries.remove(nextVictim().key);
+            this.evictions.increment();
+        }
+    }
+
+    /**
+     * Change the bound on the number of entries, evicting entries in CLOCK order if there are
+     * now too many.
+     * @param maximumSize largest number of entries to hold; 0 disables caching
+     */
+    public void setMaximumSize(int maximumSize) {
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("maximum size must not be negative: " + maximumSize);
+        }
+        this.evictionLock.lock();
+        try {
+            this.maximumSize = maximumSize;
+            this.sketch = new FrequencySketch(maximumSize);
+            evictTo(maximumSize);
+            checkRep();
+        } finally {
+            this.evictionLock.unlock();
+        }
+    }
+
+    /**
+     * @return the largest number of entries this cache holds
+     */
+    public int getMaximumSize() {
+        return this.maximumSize;
+    }
+
+    /**
+     * @return the number of entries currently held
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * @return the number of simplify() and differentiate() calls answered from the cache
+     */
+    public long hitCount() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return the number of simplify() and differentiate() calls that had to compute a result
+     */
+    public long missCount() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return the number of results dropped to stay within the maximum size, whether evicted
+     *         or never admitted
+     */
+    public long evictionCount() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * @return hits divided by lookups, or 0 if there have been no lookups
+     */
+    public double hitRate() {
+        long hits = hitCount();
+        long lookups = hits + missCount();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * Remove every entry; statistics and lookup frequencies are kept.
+     */
+    public void clear() {
+        this.evictionLock.lock();
+        try {
+            this.entries.clear();
+            this.clock.clear();
+            checkRep();
+        } finally {
+            this.evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Set the hit, miss and eviction counts back to 0.
+     */
+    public void resetStats() {
+        this.hits.reset();
+        this.misses.reset();
+        this.evictions.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "ResultCache[size=" + size() + "/" + this.maximumSize
+                + ", hits=" + hitCount() + ", misses=" + missCount()
+                + ", evictions=" + evictionCount() + "]";
+    }
+}
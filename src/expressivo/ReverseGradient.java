@@ -0,0 +1,198 @@
+package expressivo;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reverse-mode automatic differentiation of a compiled expression.
+ *
+ * One call evaluates the expression and its partial derivative by every variable in time
+ * proportional to the code length, however many variables there are, instead of building and
+ * simplifying a symbolic derivative per variable. The forward sweep records the value of every
+ * instruction on a tape; the backward sweep runs the instructions in reverse, passing each
+ * instruction's adjoint (the derivative of the result by its value) to its operands.
+ *
+ * The tape is a caller-supplied double[] of length tapeSize(), so a loop over many bindings
+ * allocates nothing; evaluate(slots, gradient) uses a per-thread tape instead.
+ */
+public class ReverseGradient {
+
+    // Rep: the compiled expression, and for each of its instructions in order the opcode and
+    //      either its operand (a constant index or slot) or the tape indices of its operands
+    private final CompiledExpression compiled;
+    private final int[] ops;
+    private final int[] first;
+    private final int[] second;
+    private final ThreadLocal<double[]> scratch;
+
+    // Abstraction Function: Represents the gradient of compiled's expression, where tape entry i
+    //                       holds the value of instruction i, ops[i] is its opcode, first[i] its
+    //                       CONST or LOAD operand, and first[i], second[i] the entries an ADD or
+    //                       MUL combines
+    //
+    // Rep Invariant: ops, first and second have the same nonzero length, and the operands of
+    //                an ADD or MUL are earlier entries
+    //
+    // Safety from rep exposure argument: arrays are private and never handed out; compiled is
+    //                                   immutable
+
+    private ReverseGradient(CompiledExpression compiled, int[] ops, int[] first, int[] second) {
+        this.compiled = compiled;
+        this.ops = ops;
+        this.first = first;
+        this.second = second;
+        this.scratch = ThreadLocal.withInitial(() -> new double[2 * ops.length]);
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert this.ops.length > 0;
+        assert this.first.length == this.ops.length && this.second.length == this.ops.length;
+    }
+
+    /**
+     * Compile an expression for gradient evaluation, assigning slots as
+     * CompiledExpression.compile(expression) does.
+     * @param expression the expression to differentiate
+     * @return its gradient evaluator
+     */
+    public static ReverseGradient compile(Expression expression) {
+        return of(CompiledExpression.compile(expression));
+    }
+
+    /**
+     * @param compiled a compiled expression
+     * @return its gradient evaluator, with compiled's slot layout
+     */
+    public static ReverseGradient of(CompiledExpression compiled) {
+        final int[] code = compiled.code();
+        int count = 0;
+        for (int pc = 0; pc < code.length; count++) {
+            pc += code[pc] <= CompiledExpression.LOAD ? 2 : 1;
+        }
+        final int[] ops = new int[count];
+        final int[] first = new int[count];
+        final int[] second = new int[count];
+        // entries whose values are still on the operand stack at this point of the code
+        final int[] stack = new int[compiled.stackSize()];
+        int sp = -1;
+        int pc = 0;
+        for (int i = 0; i < count; i++) {
+            ops[i] = code[pc++];
+            switch (ops[i]) {
+            case CompiledExpression.CONST:
+            case CompiledExpression.LOAD:
+                first[i] = code[pc++];
+                stack[++sp] = i;
+                break;
+            case CompiledExpression.ADD:
+            case CompiledExpression.MUL:
+                second[i] = stack[sp--];
+                first[i] = stack[sp];
+                stack[sp] = i;
+                break;
+            default:
+                throw new RuntimeException("You should never reach here:" + ops[i]);
+            }
+        }
+        return new ReverseGradient(compiled, ops, first, second);
+    }
+
+    /**
+     * @return the compiled expression, whose slot layout and bind() methods this uses
+     */
+    public CompiledExpression getCompiled() {
+        return this.compiled;
+    }
+
+    /**
+     * @return the length of tape evaluate(slots, gradient, tape) needs
+     */
+    public int tapeSize() {
+        return 2 * this.ops.length;
+    }
+
+    /**
+     * Evaluate the expression and its gradient against one binding, using a per-thread tape.
+     * @param slots value of each variable, indexed by slot; length at least
+     *        getCompiled().slotCount()
+     * @param gradient receives the partial derivative by each slot's variable; length at least
+     *        getCompiled().slotCount(), overwritten
+     * @return the value of the expression
+     */
+    public double evaluate(double[] slots, double[] gradient) {
+        return evaluate(slots, gradient, this.scratch.get());
+    }
+
+    /**
+     * Evaluate the expression and its gradient against one binding using a caller-supplied tape.
+     * @param slots value of each variable, indexed by slot; length at least
+     *        getCompiled().slotCount()
+     * @param gradient receives the partial derivative by each slot's variable; length at least
+     *        getCompiled().slotCount(), overwritten
+     * @param tape scratch space of length at least tapeSize(), overwritten
+     * @return the value of the expression
+     */
+    public double evaluate(double[] slots, double[] gradient, double[] tape) {
+        final int[] ops = this.ops;
+        final int[] first = this.first;
+        final int[] second = this.second;
+        final double[] constants = this.compiled.constants();
+        final int n = ops.length;
+        // tape[0..n) holds values, tape[n..2n) adjoints
+        for (int i = 0; i < n; i++) {
+            switch (ops[i]) {
+            case CompiledExpression.CONST:
+                tape[i] = constants[first[i]];
+                break;
+            case CompiledExpression.LOAD:
+                tape[i] = slots[first[i]];
+                break;
+            case CompiledExpression.ADD:
+                tape[i] = tape[first[i]] + tape[second[i]];
+                break;
+            default:
+                tape[i] = tape[first[i]] * tape[second[i]];
+            }
+        }
+        Arrays.fill(gradient, 0, this.compiled.slotCount(), 0.0);
+        Arrays.fill(tape, n, 2 * n - 1, 0.0);
+        tape[2 * n - 1] = 1.0;
+        for (int i = n - 1; i >= 0; i--) {
+            final double adjoint = tape[n + i];
+            switch (ops[i]) {
+            case CompiledExpression.CONST:
+                break;
+            case CompiledExpression.LOAD:
+                gradient[first[i]] += adjoint;
+                break;
+            case CompiledExpression.ADD:
+                tape[n + first[i]] += adjoint;
+                tape[n + second[i]] += adjoint;
+                break;
+            default:
+                tape[n + first[i]] += adjoint * tape[second[i]];
+                tape[n + second[i]] += adjoint * tape[first[i]];
+            }
+        }
+        return tape[n - 1];
+    }
+
+    /**
+     * @param environment binds every variable of the expression
+     * @return the partial derivative by each of getCompiled().getVariables(), in slot order
+     * @throws IllegalArgumentException if some variable of the expression is not bound
+     */
+    public double[] gradient(Environment environment) {
+        final double[] gradient = new double[this.compiled.slotCount()];
+        evaluate(this.compiled.bind(environment), gradient);
+        return gradient;
+    }
+
+    /**
+     * @return the variable bound to each slot, in slot order
+     */
+    public List<String> getVariables() {
+        return this.compiled.getVariables();
+    }
+}
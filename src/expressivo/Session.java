@@ -0,0 +1,113 @@
+package expressivo;
+
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A mutable console session holding the current expression as an AST.
+ *
+ * Commands that replace the current expression return the session so they can be chained,
+ * e.g. session.enter("x*x*y").differentiate("x").differentiate("y").current(). The AST is
+ * kept between commands, so a multi-step workflow parses its input once and prints only the
+ * results the caller asks for.
+ */
+public class Session {
+
+    // Rep: the current expression, or null before one has been entered
+    private Expression current;
+
+    // Abstraction Function: Represents a console session whose current expression is current,
+    //                       or that has no current expression if current == null
+    //
+    // Rep Invariant: true
+    //
+    // Safety from rep exposure argument: Expression is immutable
+
+    /**
+     * Make a session with no current expression.
+     */
+    public Session() {
+        this.current = null;
+    }
+
+    /**
+     * @param expression the initial current expression
+     */
+    public Session(Expression expression) {
+        this.current = expression;
+    }
+
+    /**
+     * Parse an expression and make it current.
+     * @param input expression to parse, as defined in the PS1 handout.
+     * @return this session
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public Session enter(String input) {
+        this.current = Expression.parse(input);
+        return this;
+    }
+
+    /**
+     * @param expression the new current expression
+     * @return this session
+     */
+    public Session set(Expression expression) {
+        this.current = expression;
+        return this;
+    }
+
+    /**
+     * @return true if and only if an expression has been entered
+     */
+    public boolean hasCurrent() {
+        return this.current != null;
+    }
+
+    /**
+     * @return the current expression
+     * @throws NoSuchElementException if no expression has been entered
+     */
+    public Expression current() {
+        if (this.current == null) {
+            throw new NoSuchElementException("no current expression");
+        }
+        return this.current;
+    }
+
+    /**
+     * Replace the current expression by its derivative.
+     * @param variable the variable to differentiate by, a case-sensitive nonempty string of letters.
+     * @return this session
+     * @throws NoSuchElementException if no expression has been entered
+     */
+    public Session differentiate(String variable) {
+        this.current = Commands.differentiate(current(), variable);
+        return this;
+    }
+
+    /**
+     * Simplify the current expression without replacing it.
+     * @param environment maps variables to values, as for Commands.simplify
+     * @return the simplified current expression
+     * @throws NoSuchElementException if no expression has been entered
+     */
+    public Expression simplify(Map<String, Double> environment) {
+        return Commands.simplify(current(), environment);
+    }
+
+    /**
+     * Simplify the current expression without replacing it.
+     * @param environment binds variables to values, as for Commands.simplify
+     * @return the simplified current expression
+     * @throws NoSuchElementException if no expression has been entered
+     */
+    public Expression simplify(Environment environment) {
+        return Commands.simplify(current(), environment);
+    }
+
+    @Override
+    public String toString() {
+        return this.current == null ? "" : this.current.toString();
+    }
+}
@@ -0,0 +1,177 @@
+package expressivo;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable data type representing the sum of two or more expressions, stored flat.
+ *
+ * Sum(a, b, c) is the same expression as Plus(Plus(a, b), c): the two are equal, have the same
+ * hash code and print the same, but a long sum costs one node and one array instead of a chain
+ * of binary nodes as deep as the number of terms.
+ */
+public class Sum extends Operator {
+    
+    // Rep: the terms, left to right
+    private final Expression[] terms;
+    private final int hash;
+    private final boolean constant;
+    private final VariableSet variables;
+    private final boolean stable;
+    
+    // Abstraction Function: Represents (((terms[0] + terms[1]) + terms[2]) + ... + terms[n-1])
+    //                       
+    // Rep Invariant: terms.length >= 2 and no term is null; hash is the left fold of
+    //                Hashing.combine over the terms' hashes, constant is true iff every term
+    //                has a value, variables is the union of theirs and stable is as defined
+    //                by Operator.stable(); all are cached because the tree is immutable
+    //
+    // Safety from rep exposure argument: terms is a private copy, only exposed as an
+    //                                    unmodifiable list
+    
+    /**
+     * @param terms the terms to add, left to right; at least two
+     */
+    public Sum(List<? extends Expression> terms) {
+        this.terms = terms.toArray(new Expression[terms.size()]);
+        if (this.terms.length < 2) {
+            throw new IllegalArgumentException("a sum needs at least two terms");
+        }
+        int hash = this.terms[0].hashCode();
+        boolean constant = this.terms[0].hasValue();
+        VariableSet variables = variablesOf(this.terms[0]);
+        boolean stable = stableOf(this.terms[0]);
+        for (int i = 1; i < this.terms.length; i++) {
+            hash = Hashing.combine(Hashing.PLUS_SEED, hash, this.terms[i].hashCode());
+            constant = constant && this.terms[i].hasValue();
+            variables = variables.union(variablesOf(this.terms[i]));
+            stable = stable && stableOf(this.terms[i]);
+        }
+        this.hash = hash;
+        this.constant = constant;
+        this.variables = variables;
+        this.stable = stableOf(this.terms[0], this.terms[1], stable);
+        checkRep();
+    }
+    
+    private void checkRep() {
+        assert this.terms.length >= 2;
+    }
+    
+    /**
+     * @param a variable which this Expression object will be differentiated with respect to
+     * @return a new differentiated Expression object
+     */
+    public Expression differentiate(Variable v) {
+        checkRep();
+        return Traversal.differentiate(this, v);
+    }
+    
+    /**
+     * Simplify an expression.  
+     * @param environment A mapping of Variables to numeric (double) values.
+     * @return A new Expression object containing the simplified expression. Constant expressions will be reduced to a single number, with
+     * no remaining operators. Variable expressions will remain in their current form unless the
+     * environment allows for substitution.
+     */
+    public Expression simplify(Map<String,Double> environment) {
+        checkRep();
+        return Traversal.simplify(this, environment);
+    }
+    
+    /**
+     * Simplify an expression against an id-indexed environment.
+     * @param environment binds variables to numeric (double) values by SymbolTable number.
+     * @return an expression equal to simplify(environment.toMap())
+     */
+    @Override
+    public Expression simplify(Environment environment) {
+        checkRep();
+        return Traversal.simplify(this, environment);
+    }
+    
+    /**
+     * @return the terms of this sum, left to right.
+     */
+    public List<Expression> getTerms() {
+        checkRep();
+        return Collections.unmodifiableList(Arrays.asList(this.terms));
+    }
+    
+    @Override
+    boolean isSum() {
+        return true;
+    }
+    
+    @Override
+    VariableSet variables() {
+        return this.variables;
+    }
+    
+    @Override
+    boolean stable() {
+        return this.stable;
+    }
+    
+    @Override
+    int arity() {
+        return this.terms.length;
+    }
+    
+    @Override
+    Expression child(int i) {
+        return this.terms[i];
+    }
+    
+    /**
+     * @return a parsable representation of this expression, such that
+     * for all e:Expression, e.equals(Expression.parse(e.toString())).
+     */
+    @Override 
+    public String toString() {
+        checkRep();
+        return Traversal.toString(this);
+    }
+
+    /**
+     * @param thatObject any object
+     * @return true if and only if this and thatObject are structurally-equal
+     * Expressions, as defined in the PS1 handout.
+     */
+    @Override
+    public boolean equals(Object thatObject) {
+        checkRep();
+        return operatorEquals(thatObject);
+    }
+    
+    /**
+     * @return hash code value consistent with the equals() definition of structural
+     * equality, such that for all e1,e2:Expression,
+     *     e1.equals(e2) implies e1.hashCode() == e2.hashCode()
+     */
+    @Override
+    public int hashCode() {
+        checkRep();
+        return this.hash;
+    }
+    
+    /**
+     * @return numeric (double) value if object contains one.
+     */
+    public double getValue() {
+        checkRep();
+        throw new UnsupportedOperationException("Code should never reach here");
+    }
+    
+    /**
+     * @return True if the current expression object contains an integer value.
+     */
+    public boolean hasValue() {
+        checkRep();
+        return this.constant;
+    }
+    
+
+}
@@ -0,0 +1,84 @@
+package expressivo;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The global table of variable names, numbering each distinct name in order of first use.
+ *
+ * Every Variable carries the number of its name, so comparing variables compares ints, and
+ * numbers are small and dense, so sets of variables can be bitsets and environments can be
+ * arrays indexed by them (see Environment). Names are never removed: the table grows with the
+ * number of distinct variable names the program has seen, which for expressions over letters
+ * stays small.
+ */
+public class SymbolTable {
+
+    // Rep: the number of each known name, the names in number order, and how many there are
+    private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[16];
+    private static int size = 0;
+
+    // Abstraction Function: Represents the numbering name -> ids.get(name)
+    //
+    // Rep Invariant: names[ids.get(name)].equals(name) for every key of ids, and the numbers are
+    //                exactly 0..size-1
+    //
+    // Safety from rep exposure argument: fields are private. A new name is stored, then the
+    //                                   volatile names field is reassigned, then its number is
+    //                                   put in ids, so anyone holding a number sees its name
+    //                                   and name() needs no lock.
+
+    private SymbolTable() {
+        // not instantiable
+    }
+
+    /**
+     * @param name a variable name
+     * @return the number of name, assigning the next unused number if it has none yet
+     */
+    public static int id(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (ids) {
+            id = ids.get(name);
+            if (id == null) {
+                id = size;
+                String[] grown = size < names.length ? names : Arrays.copyOf(names, 2 * size);
+                grown[id] = name;
+                names = grown;
+                size++;
+                ids.put(name, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * @param name a variable name
+     * @return the number of name, or -1 if no expression has used it
+     */
+    public static int find(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @param id a number returned by id()
+     * @return the name numbered id
+     */
+    public static String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * @return the number of names in the table; every number is less than this
+     */
+    public static int size() {
+        synchronized (ids) {
+            return size;
+        }
+    }
+}
@@ -13,22 +13,31 @@ import java.util.Map;
  * You may, however, add additional methods, or strengthen the specs of existing methods.
  * Declare concrete variants of Expression in their own Java source files.
  */
-public class Times implements Expression {
+public class Times extends Operator {
     
     // Rep: A variable used in mathematical expressions
-    private final String timesOp = "*";
     private final Expression left;
     private final Expression right;
+    private final int hash;
+    private final boolean constant;
+    private final VariableSet variables;
+    private final boolean stable;
     
     // Abstraction Function: Represents a variable, eg. x  in  'x + 3'
     //                       
-    // Rep Invariant: 
+    // Rep Invariant: hash is the combined hash of left and right, constant is true iff both
+    //                have values, variables is the union of theirs and stable is as defined by
+    //                Operator.stable(); all are cached because the tree is immutable
     //
     // Safety from rep exposure argument: Immutable datatype                
     
     public Times(Expression left, Expression right) {
         this.left = left;
         this.right = right;
+        this.hash = Hashing.combine(Hashing.TIMES_SEED, left.hashCode(), right.hashCode());
+        this.constant = left.hasValue() && right.hasValue();
+        this.variables = variablesOf(left).union(variablesOf(right));
+        this.stable = stableOf(left, right, stableOf(left) && stableOf(right));
         checkRep();
     }
     
@@ -43,10 +52,7 @@ public class Times implements Expression {
      */
     public Expression differentiate(Variable v) {
         checkRep();
-        //If one of the expressions is v, then the other cannot be a constant.
-        Expression leftDifferential = new Times(this.left, this.right.differentiate(v));
-        Expression rightDifferential = new Times(this.right, this.left.differentiate(v));
-        return new Plus(leftDifferential, rightDifferential);
+        return Traversal.differentiate(this, v);
     }
     
     /**
@@ -58,9 +64,18 @@ public class Times implements Expression {
      */
     public Expression simplify(Map<String,Double> environment) {
         checkRep();
-        Expression leftExpression = this.left.simplify(environment);
-        Expression rightExpression = this.right.simplify(environment);
-        return combineTerms(leftExpression, rightExpression);
+        return Traversal.simplify(this, environment);
+    }
+    
+    /**
+     * Simplify an expression against an id-indexed environment.
+     * @param environment binds variables to numeric (double) values by SymbolTable number.
+     * @return an expression equal to simplify(environment.toMap())
+     */
+    @Override
+    public Expression simplify(Environment environment) {
+        checkRep();
+        return Traversal.simplify(this, environment);
     }
     
     /**
@@ -82,10 +97,35 @@ public class Times implements Expression {
     public Expression combineTerms(Expression exp1, Expression exp2) {
         checkRep();
         if (exp1.hasValue() && exp2.hasValue()) {
-            return new Number(exp1.getValue() * exp2.getValue());
-        } else return new Times(exp1, exp2);
+            return NodeFactory.number(exp1.getValue() * exp2.getValue());
+        } else return NodeFactory.times(exp1, exp2);
     }
 
+    @Override
+    boolean isSum() {
+        return false;
+    }
+    
+    @Override
+    VariableSet variables() {
+        return this.variables;
+    }
+    
+    @Override
+    boolean stable() {
+        return this.stable;
+    }
+    
+    @Override
+    int arity() {
+        return 2;
+    }
+    
+    @Override
+    Expression child(int i) {
+        return i == 0 ? this.left : this.right;
+    }
+    
     /**
      * @return a parsable representation of this expression, such that
      * for all e:Expression, e.equals(Expression.parse(e.toString())).
@@ -93,7 +133,7 @@ public class Times implements Expression {
     @Override 
     public String toString() {
         checkRep();
-        return left.toString() + timesOp + right.toString(); 
+        return Traversal.toString(this);
     }
 
     /**
@@ -104,9 +144,7 @@ public class Times implements Expression {
     @Override
     public boolean equals(Object thatObject) {
         checkRep();
-        if (!(thatObject instanceof Times)) return false;
-        Times thatExp = (Times) thatObject; 
-            return (this.left.equals(thatExp.left)) && (this.right.equals(thatExp.right));
+        return operatorEquals(thatObject);
     }
     
     /**
@@ -117,7 +155,7 @@ public class Times implements Expression {
     @Override
     public int hashCode() {
         checkRep();
-        return left.hashCode() + right.hashCode();
+        return this.hash;
     }
     
     /**
@@ -133,7 +171,7 @@ public class Times implements Expression {
      */
     public boolean hasValue() {
         checkRep();
-        return this.left.hasValue() && this.right.hasValue();
+        return this.constant;
     }
     
 
@@ -0,0 +1,359 @@
+package expressivo;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Iterative implementations of the recursive Expression operations.
+ *
+ * Every walk keeps its own work stack instead of using the call stack, so machine-generated
+ * expressions with hundreds of thousands of terms (which parse into left-leaning chains of the
+ * same depth) cannot overflow it. Bottom-up rewrites remember the result for each node they
+ * have finished, so a subtree shared through NodeFactory is rewritten once, not once per
+ * occurrence.
+ */
+class Traversal {
+
+    private Traversal() {
+        // not instantiable
+    }
+
+    /**
+     * How a bottom-up rewrite combines the results for a node's children.
+     */
+    interface Rules {
+
+        /**
+         * @param node a node about to be rewritten
+         * @return the result for node if it is known without looking at its children, or null
+         *         to rewrite node from the results for its children as usual
+         */
+        default Expression shortcut(Expression node) {
+            return null;
+        }
+
+        /**
+         * @param leaf a Number or Variable
+         * @return the result for leaf
+         */
+        Expression leaf(Expression leaf);
+
+        /**
+         * @param node an operator node
+         * @param results the result for each operand of node, left to right
+         * @return the result for node
+         */
+        Expression operator(Operator node, Expression[] results);
+    }
+
+    /**
+     * Rewrite a tree bottom-up.
+     * @param root the tree to rewrite
+     * @param rules how to rewrite each variant
+     * @return the result for root
+     */
+    static Expression rewrite(Expression root, Rules rules) {
+        Expression known = rules.shortcut(root);
+        if (known != null) {
+            return known;
+        }
+        Map<Expression, Expression> done = new IdentityHashMap<>();
+        Deque<Expression> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Expression node = stack.peek();
+            if (done.containsKey(node)) {
+                stack.pop();
+                continue;
+            }
+            if (!(node instanceof Operator)) {
+                done.put(node, rules.leaf(node));
+                stack.pop();
+                continue;
+            }
+            Operator op = (Operator) node;
+            boolean ready = true;
+            for (int i = op.arity() - 1; i >= 0; i--) {
+                Expression child = op.child(i);
+                if (done.containsKey(child)) {
+                    continue;
+                }
+                known = rules.shortcut(child);
+                if (known != null) {
+                    done.put(child, known);
+                } else {
+                    stack.push(child);
+                    ready = false;
+                }
+            }
+            if (!ready) {
+                continue;
+            }
+            stack.pop();
+            Expression[] results = new Expression[op.arity()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = done.get(op.child(i));
+            }
+            done.put(node, rules.operator(op, results));
+        }
+        return done.get(root);
+    }
+
+    /**
+     * @return root.simplify(environment): root itself if it is stable and none of its variables
+     *         are bound, otherwise from ResultCache.shared() when it holds the result
+     */
+    static Expression simplify(Operator root, Map<String, Double> environment) {
+        // restrict environment to root's variables, so neither the cache key nor the rewrite
+        // sees bindings that cannot matter
+        return simplifyRestricted(root, Environment.of(environment, root.variables()));
+    }
+
+    /**
+     * @return root.simplify(environment), as for simplify(Operator, Map)
+     */
+    static Expression simplify(Operator root, Environment environment) {
+        return simplifyRestricted(root, environment.restrictedTo(root.variables()));
+    }
+
+    private static Expression simplifyRestricted(Operator root, Environment relevant) {
+        if (relevant.isEmpty() && root.stable()) {
+            return root;
+        }
+        return ResultCache.shared().simplify(root, relevant);
+    }
+
+    /**
+     * @return root.simplify(environment), computed without recursion
+     */
+    static Expression simplifyUncached(Expression root, final Environment environment) {
+        final VariableSet bound = environment.bound();
+        return rewrite(root, new Rules() {
+            @Override
+            public Expression shortcut(Expression node) {
+                // a stable subtree with nothing to substitute simplifies to itself
+                return Operator.stableOf(node) && !Operator.variablesOf(node).intersects(bound) ? node : null;
+            }
+
+            @Override
+            public Expression leaf(Expression leaf) {
+                return leaf.simplify(environment);
+            }
+
+            @Override
+            public Expression operator(Operator node, Expression[] results) {
+                return fold(node.isSum(), results);
+            }
+        });
+    }
+
+    /**
+     * Combine simplified operands from left to right the way Plus.combineTerms and
+     * Times.combineTerms do: fold while the running result and the next operand both have
+     * values, and keep the remaining operands as they are once one does not.
+     * @param sum true to add, false to multiply
+     * @param operands simplified operands, at least one
+     * @return the simplified expression, equal to the left-folded binary form
+     */
+    static Expression fold(boolean sum, Expression[] operands) {
+        int next = 1;
+        Expression first = operands[0];
+        while (next < operands.length && first.hasValue() && operands[next].hasValue()) {
+            first = NodeFactory.number(sum
+                    ? first.getValue() + operands[next].getValue()
+                    : first.getValue() * operands[next].getValue());
+            next++;
+        }
+        if (next == operands.length) {
+            return first;
+        }
+        List<Expression> kept = new ArrayList<>(operands.length - next + 1);
+        kept.add(first);
+        kept.addAll(Arrays.asList(operands).subList(next, operands.length));
+        return sum ? NodeFactory.sum(kept) : NodeFactory.product(kept);
+    }
+
+    /**
+     * @return root.differentiate(v), from ResultCache.shared() when it holds the result
+     */
+    static Expression differentiate(Operator root, Variable v) {
+        return ResultCache.shared().differentiate(root, v);
+    }
+
+    /**
+     * @return root.differentiate(v), computed without recursion
+     */
+    static Expression differentiateUncached(Expression root, final Variable v) {
+        return rewrite(root, new Rules() {
+            @Override
+            public Expression leaf(Expression leaf) {
+                return leaf.differentiate(v);
+            }
+
+            @Override
+            public Expression operator(Operator node, Expression[] results) {
+                return differentiateOperator(node, results);
+            }
+        });
+    }
+
+    /**
+     * @param node an operator node
+     * @param results the derivative of each operand of node by some variable, left to right
+     * @return the derivative of node by that variable
+     */
+    static Expression differentiateOperator(Operator node, Expression[] results) {
+        if (node.isSum()) {
+            return NodeFactory.sum(Arrays.asList(results));
+        }
+        // product rule d(uw) = u*dw + w*du applied down the left-folded binary chain the node
+        // stands for, so a Product differentiates exactly like the equal chain of Times nodes:
+        // with p the product of the first k factors and dp its derivative,
+        // d(p*f) = p*df + f*dp
+        Expression prefix = node.child(0);
+        Expression differential = results[0];
+        for (int k = 1; k < results.length; k++) {
+            Expression leftDifferential = NodeFactory.times(prefix, results[k]);
+            Expression rightDifferential = NodeFactory.times(node.child(k), differential);
+            differential = NodeFactory.plus(leftDifferential, rightDifferential);
+            if (k + 1 < results.length) {
+                prefix = NodeFactory.times(prefix, node.child(k));
+            }
+        }
+        return differential;
+    }
+
+    /**
+     * Write the toString() form of root to out without recursion or intermediate strings.
+     * @param root the expression to print
+     * @param out where to write it
+     * @throws IOException if out does
+     */
+    static void append(Expression root, Appendable out) throws IOException {
+        // holds Expressions still to print and Strings to write verbatim
+        Deque<Object> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Object item = stack.pop();
+            if (item instanceof Operator) {
+                Operator op = (Operator) item;
+                // a sum of n terms prints as n-1 nested parenthesized pairs, a product bare
+                for (int i = op.arity() - 1; i >= 1; i--) {
+                    if (op.isSum()) {
+                        stack.push(")");
+                    }
+                    stack.push(op.child(i));
+                    stack.push(op.isSum() ? "+" : "*");
+                }
+                stack.push(op.child(0));
+                if (op.isSum()) {
+                    for (int i = 1; i < op.arity(); i++) {
+                        out.append('(');
+                    }
+                }
+            } else if (item instanceof String) {
+                out.append((String) item);
+            } else {
+                out.append(item.toString());
+            }
+        }
+    }
+
+    /**
+     * @return the toString() form of root
+     */
+    static String toString(Expression root) {
+        StringBuilder out = new StringBuilder();
+        try {
+            append(root, out);
+        } catch (IOException e) {
+            throw new RuntimeException("You should never reach here:" + e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return true if and only if a and b are structurally equal, compared without recursion.
+     *         Operator nodes compare as their left-folded binary form, so a Sum equals the Plus
+     *         chain it stands for.
+     */
+    static boolean equal(Expression a, Expression b) {
+        // pairs to compare, each side a node and how many of its leading operands to take: an
+        // operator taken with count < arity stands for the left fold of its first count operands,
+        // so comparing a Sum against a Plus chain walks the chain's left spine against a falling
+        // count instead of building a prefix node at every level
+        Expression[] nodes = new Expression[16];
+        int[] counts = new int[16];
+        int top = 0;
+        nodes[top] = a;
+        counts[top++] = operandCount(a);
+        nodes[top] = b;
+        counts[top++] = operandCount(b);
+        while (top > 0) {
+            Expression y = nodes[--top];
+            int q = counts[top];
+            Expression x = nodes[--top];
+            int p = counts[top];
+            if (x == y && p == q) {
+                continue;
+            }
+            if (x instanceof Operator && y instanceof Operator) {
+                Operator ox = (Operator) x;
+                Operator oy = (Operator) y;
+                if (ox.isSum() != oy.isSum()) {
+                    return false;
+                }
+                // operator hashes are cached, so this rejects most unequal whole nodes in O(1)
+                if (p == ox.arity() && q == oy.arity() && ox.hashCode() != oy.hashCode()) {
+                    return false;
+                }
+                if (p < q) {
+                    Operator swap = ox;
+                    ox = oy;
+                    oy = swap;
+                    int count = p;
+                    p = q;
+                    q = count;
+                }
+                // ((x0 o x1) o ... o x(p-1)) equals ((y0 o y1) o ... o y(q-1)), q <= p, iff the
+                // last q-1 operands match pairwise and (x0 o ... o x(p-q)) equals y0
+                if (top + 2 * q > nodes.length) {
+                    nodes = Arrays.copyOf(nodes, 2 * (top + 2 * q));
+                    counts = Arrays.copyOf(counts, nodes.length);
+                }
+                for (int k = 1; k < q; k++) {
+                    nodes[top] = ox.child(p - k);
+                    counts[top++] = operandCount(ox.child(p - k));
+                    nodes[top] = oy.child(q - k);
+                    counts[top++] = operandCount(oy.child(q - k));
+                }
+                if (p - q + 1 == 1) {
+                    nodes[top] = ox.child(0);
+                    counts[top++] = operandCount(ox.child(0));
+                } else {
+                    nodes[top] = ox;
+                    counts[top++] = p - q + 1;
+                }
+                nodes[top] = oy.child(0);
+                counts[top++] = operandCount(oy.child(0));
+            } else if (x.getClass() != y.getClass() || !x.equals(y)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param node any expression
+     * @return the number of operands of node if it is an operator, else 0
+     */
+    private static int operandCount(Expression node) {
+        return node instanceof Operator ? ((Operator) node).arity() : 0;
+    }
+}
@@ -8,22 +8,27 @@ import java.util.Map;
  */
 public class Variable implements Expression {
     
-    // Rep: A variable used in mathematical expressions
-    private final String name;
+    // Rep: A variable used in mathematical expressions, stored as the SymbolTable number of its
+    //      name
+    private final int id;
+    private final VariableSet variables;
     
     // Abstraction Function: Represents a variable, eg. x  in  'x + 3'
     //                       
     // Rep Invariant: Variables are case sensitive, non-empty and do not contain numeric chars.
+    //                id is a SymbolTable number, and variables is the set holding just this
+    //                variable, cached for Operator
     //
-    // Safety from rep exposure argument: String field is final, no mutator methods               
+    // Safety from rep exposure argument: fields are final, no mutator methods               
     
     public Variable(String name) {
-        this.name = name;
+        this.id = SymbolTable.id(name);
+        this.variables = VariableSet.of(this.id);
         checkRep();
     }
     
     private void checkRep() {
-        assert this.name != null;
+        assert this.id >= 0;
     }
     
     /**
@@ -32,9 +37,9 @@ public class Variable implements Expression {
      */
     public Expression differentiate(Variable v) {
         checkRep();
-        if (v.name.equals(this.name)) {
-            return new Number(1);
-        } else return new Number(0);
+        if (v.id == this.id) {
+            return NodeFactory.number(1);
+        } else return NodeFactory.number(0);
     }
     
     /**
@@ -45,13 +50,48 @@ public class Variable implements Expression {
      */
     public Expression simplify(Map<String,Double> environment) {
         checkRep();
-        if (environment.containsKey(this.name)) {
-            return new Number(environment.get(this.name));
+        Double value = environment.get(getName());
+        if (value != null) {
+            return NodeFactory.number(value);
             }
         else 
             return this;
     }
     
+    /**
+     * Simplify an expression against an id-indexed environment.
+     * @param environment binds variables to numeric (double) values by SymbolTable number.
+     * @return a Number holding this variable's value if environment binds it, otherwise this
+     */
+    @Override
+    public Expression simplify(Environment environment) {
+        checkRep();
+        return environment.isBound(this.id) ? NodeFactory.number(environment.get(this.id)) : this;
+    }
+    
+    /**
+     * @return the name of this variable
+     */
+    public String getName() {
+        checkRep();
+        return SymbolTable.name(this.id);
+    }
+    
+    /**
+     * @return the SymbolTable number of this variable's name
+     */
+    public int getId() {
+        checkRep();
+        return this.id;
+    }
+    
+    /**
+     * @return the set holding just this variable
+     */
+    VariableSet variables() {
+        return this.variables;
+    }
+    
     /**
      * @return a parsable representation of this expression, such that
      * for all e:Expression, e.equals(Expression.parse(e.toString())).
@@ -59,7 +99,7 @@ public class Variable implements Expression {
     @Override 
     public String toString() {
         checkRep();
-        return this.name; 
+        return getName(); 
     }
 
     /**
@@ -70,9 +110,10 @@ public class Variable implements Expression {
     @Override
     public boolean equals(Object thatObject) {
         checkRep();
+        if (this == thatObject) return true;
         if (!(thatObject instanceof Variable)) return false;
         Variable thatVar = (Variable) thatObject;
-        return this.name.equals(thatVar.name);
+        return this.id == thatVar.id;
     }
     
     /**
@@ -83,7 +124,7 @@ public class Variable implements Expression {
     @Override
     public int hashCode() {
         checkRep();
-        return this.name.hashCode();
+        return Hashing.mix(this.id);
     }
     
     public double getValue() {
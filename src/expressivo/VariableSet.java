@@ -0,0 +1,167 @@
+package expressivo;
+
+import java.util.Arrays;
+
+/**
+ * An immutable set of variables, stored as a bitset over their SymbolTable numbers.
+ *
+ * Operator nodes cache the set of variables in their subtree, built as the union of their
+ * operands' sets when the node is constructed. Union returns an operand's own set when the
+ * other adds nothing, so nodes along a chain usually share a single instance.
+ */
+final class VariableSet {
+
+    /** the set with no variables */
+    static final VariableSet EMPTY = new VariableSet(new long[0]);
+
+    // Rep: bit (id % 64) of words[id / 64] is set iff variable id is in the set
+    private final long[] words;
+
+    // Abstraction Function: Represents the set of variables whose SymbolTable numbers have their
+    //                       bit set in words
+    //
+    // Rep Invariant: words is empty or its last word is nonzero
+    //
+    // Safety from rep exposure argument: words is private and never handed out
+
+    private VariableSet(long[] words) {
+        this.words = words;
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert this.words.length == 0 || this.words[this.words.length - 1] != 0;
+    }
+
+    /**
+     * @param id a SymbolTable number
+     * @return the set holding only that variable
+     */
+    static VariableSet of(int id) {
+        long[] words = new long[(id >>> 6) + 1];
+        words[id >>> 6] = 1L << id;
+        return new VariableSet(words);
+    }
+
+    /**
+     * @param words a bitset, bit (id % 64) of words[id / 64] set iff variable id is a member
+     * @return the set of those variables; words is copied
+     */
+    static VariableSet ofWords(long[] words) {
+        int length = words.length;
+        while (length > 0 && words[length - 1] == 0) {
+            length--;
+        }
+        return length == 0 ? EMPTY : new VariableSet(Arrays.copyOf(words, length));
+    }
+
+    /**
+     * @param that another set
+     * @return the union of this and that; this or that itself if one contains the other
+     */
+    VariableSet union(VariableSet that) {
+        if (that.containsAll(this)) {
+            return that;
+        }
+        if (this.containsAll(that)) {
+            return this;
+        }
+        long[] longer = this.words.length >= that.words.length ? this.words : that.words;
+        long[] shorter = longer == this.words ? that.words : this.words;
+        long[] words = Arrays.copyOf(longer, longer.length);
+        for (int i = 0; i < shorter.length; i++) {
+            words[i] |= shorter[i];
+        }
+        return new VariableSet(words);
+    }
+
+    /**
+     * @param that another set
+     * @return true if and only if every variable of that is in this
+     */
+    boolean containsAll(VariableSet that) {
+        if (that.words.length > this.words.length) {
+            return false;
+        }
+        for (int i = 0; i < that.words.length; i++) {
+            if ((that.words[i] & ~this.words[i]) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param that another set
+     * @return true if and only if this and that have a variable in common
+     */
+    boolean intersects(VariableSet that) {
+        int n = Math.min(this.words.length, that.words.length);
+        for (int i = 0; i < n; i++) {
+            if ((this.words[i] & that.words[i]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param id a SymbolTable number
+     * @return true if and only if that variable is in this set
+     */
+    boolean contains(int id) {
+        int word = id >>> 6;
+        return word < this.words.length && (this.words[word] & (1L << id)) != 0;
+    }
+
+    /**
+     * @return true if and only if this set has no variables
+     */
+    boolean isEmpty() {
+        return this.words.length == 0;
+    }
+
+    /**
+     * @param from a SymbolTable number
+     * @return the smallest number >= from in this set, or -1 if there is none
+     */
+    int next(int from) {
+        int word = from >>> 6;
+        if (word >= this.words.length) {
+            return -1;
+        }
+        long bits = this.words[word] & (-1L << from);
+        while (true) {
+            if (bits != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+            if (++word == this.words.length) {
+                return -1;
+            }
+            bits = this.words[word];
+        }
+    }
+
+    @Override
+    public boolean equals(Object thatObject) {
+        if (!(thatObject instanceof VariableSet)) return false;
+        return Arrays.equals(this.words, ((VariableSet) thatObject).words);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(this.words);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("{");
+        for (int id = next(0); id >= 0; id = next(id + 1)) {
+            if (result.length() > 1) {
+                result.append(", ");
+            }
+            result.append(SymbolTable.name(id));
+        }
+        return result.append("}").toString();
+    }
+}
@@ -6,8 +6,12 @@ package expressivo;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Test;
 
@@ -39,6 +43,7 @@ public class CommandsTest {
     // Variable expression with respect to same variable
     // Sum expression with more than one variable
     // Times expression with more than one variable
+    // Polynomial method: collects terms, variable absent, same as symbolic when SYMBOLIC
     //
     // simplify()
     //
@@ -47,6 +52,14 @@ public class CommandsTest {
     // environment has 2 or more variables
     //
     // variables occur in middle of expression
+    //
+    // Expression overloads and Session
+    // agree with the String commands; chained derivatives; simplify keeps the current
+    // expression; no current expression
+    //
+    // BatchProcessor
+    // sequential, parallel; blank lines; command before any expression; invalid expression
+    // followed by commands; more lines than one parallel batch
     // variables occur at ends of expression
     //
     // expression involves addition
@@ -109,6 +122,14 @@ public class CommandsTest {
         assertEquals(differential,"(((x*1.0+x*1.0)+(3.0*1.0+x*0.0))+0.0)");
     }
     
+    @Test
+    public void testDifferentiatePolynomial() {
+        assertEquals("(2.0*x+3.0)", Commands.differentiate("x*x+3*x+9", "x", Commands.Differentiation.POLYNOMIAL));
+        assertEquals("(3.0*x*x*y+y*y)", Commands.differentiate("x*x*x*y+x*y*y+y", "x", Commands.Differentiation.POLYNOMIAL));
+        assertEquals("0.0", Commands.differentiate("y*8", "x", Commands.Differentiation.POLYNOMIAL));
+        assertEquals(Commands.differentiate("x*x", "x"), Commands.differentiate("x*x", "x", Commands.Differentiation.SYMBOLIC));
+    }
+    
     //tests for Commands.simplify()
     
     @Test
@@ -159,4 +180,63 @@ public class CommandsTest {
         assertEquals(Commands.simplify(expression2, environment),"50.0");
     }
     
+    @Test
+    public void testExpressionOverloadsAndSession() {
+        Map<String, Double> environment = new HashMap<String, Double>();
+        environment.put("x", 3.0);
+        environment.put("y", 2.0);
+        Expression expression = Expression.parse("x*x*y+y");
+        assertEquals(Commands.differentiate("x*x*y+y", "x"), Commands.differentiate(expression, "x").toString());
+        assertEquals(Commands.simplify("x*x*y+y", environment), Commands.simplify(expression, environment).toString());
+
+        Session session = new Session();
+        assertFalse(session.hasCurrent());
+        Expression mixed = session.enter("x*x*y+y").differentiate("x").differentiate("y").current();
+        assertEquals(new Number(6.0), mixed.simplify(environment));
+        assertEquals(new Number(6.0), session.simplify(environment));
+        assertSame(mixed, session.current());
+    }
+    
+    @Test(expected=NoSuchElementException.class)
+    public void testSessionWithoutExpression() {
+        new Session().differentiate("x");
+    }
+    
+    private static String batch(BatchProcessor processor, String input) throws IOException {
+        StringWriter out = new StringWriter();
+        processor.process(new StringReader(input), out);
+        return out.toString();
+    }
+    
+    @Test
+    public void testBatchMatchesConsole() throws IOException {
+        String input = "!d/dx\n"
+                + "x*x*y\n"
+                + "\n"
+                + "!d/dx\n"
+                + "!simplify x=2 y=3\n"
+                + "x+\n"
+                + "!simplify x=1\n"
+                + "2*y\n";
+        String expected = "must enter an expression before using this command\n"
+                + Expression.parse("x*x*y") + "\n"
+                + new Session().enter("x*x*y").differentiate("x").current() + "\n"
+                + new Number(12.0) + "\n"
+                + "java.lang.IllegalArgumentException: invalid expression: unable to parse\n"
+                + new Session().enter("x*x*y").differentiate("x").simplify(new Environment().bind("x", 1.0)) + "\n"
+                + Expression.parse("2*y") + "\n";
+        String sequential = batch(new BatchProcessor(), input);
+        assertEquals(expected, sequential);
+        assertEquals(sequential, batch(new BatchProcessor(ForkJoinPool.commonPool()), input));
+    }
+    
+    @Test
+    public void testBatchParallelAcrossBatches() throws IOException {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < BatchProcessor.BATCH_LINES + 100; i++) {
+            input.append(i % 3 == 0 ? "x*" + i + "\n" : i % 3 == 1 ? "!d/dx\n" : "+\n!simplify x=1\n");
+        }
+        String sequential = batch(new BatchProcessor(), input.toString());
+        assertEquals(sequential, batch(new BatchProcessor(ForkJoinPool.commonPool()), input.toString()));
+    }
 }
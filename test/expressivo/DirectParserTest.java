@@ -0,0 +1,163 @@
+package expressivo;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import expressivo.ExpressionParser.Strategy;
+
+/**
+ * Tests for DirectParser, checked against the grammar-based parser.
+ */
+public class DirectParserTest {
+
+    // Testing strategy
+    //
+    // valid input: numbers (integer, decimal, leading '.'), variables, + and *,
+    //              parens (single, nested, nested 100k deep), whitespace around tokens,
+    //              long chains
+    // invalid input: empty, trailing operator, unbalanced parens, bad characters,
+    //                number with trailing '.', missing operator
+    //
+    // every valid input must give an AST equal to Expression.parse;
+    // every invalid input must be rejected by both, with the error offset reported
+    //
+    // CorpusLoader
+    // lines: valid, invalid, "\r\n" endings, no final newline
+    // chunk size: 1, larger than the file; region size: smaller than the file, shorter than a line
+
+    private static final String[] VALID = {
+        "3", "345890", "3.8", ".5", "x", "Foo", "3+5", "3+x", "4*5", " 3  +  4 ",
+        "(3+5)", "((3))", "(3)*(4)", "(3+5.0)*7", "x*x+3*x+9", "x + y + x",
+        "2*x*y+(x+1)*(y+2)", "( x ) * ( ( y + 1 ) )", "a+b+c+d+e+f+g",
+    };
+
+    private static final String[] INVALID = {
+        "", " ", "(3", "5*", "x+", "3)", "()", "3.", "x y", "2x", "x-1", "+", "3..4",
+    };
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    @Test
+    public void testValidMatchesGrammar() {
+        for (String input : VALID) {
+            Expression expected = ExpressionParser.parse(input, Strategy.GRAMMAR);
+            Expression actual = ExpressionParser.parse(input, Strategy.DIRECT);
+            assertEquals(input, expected, actual);
+            assertEquals(input, expected.toString(), actual.toString());
+        }
+    }
+
+    @Test
+    public void testInvalidRejectedByBoth() {
+        for (String input : INVALID) {
+            try {
+                Expression.parse(input);
+                fail("grammar accepted " + input);
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+            try {
+                DirectParser.parse(input);
+                fail("direct parser accepted " + input);
+            } catch (ExpressionParseException expected) {
+                assertTrue(expected.getOffset() >= 0 && expected.getOffset() <= input.length());
+            }
+        }
+    }
+
+    @Test
+    public void testErrorOffset() {
+        try {
+            DirectParser.parse("(x + 1");
+            fail("expected ExpressionParseException");
+        } catch (ExpressionParseException e) {
+            assertEquals(6, e.getOffset());
+        }
+        try {
+            DirectParser.parse("x * ?");
+            fail("expected ExpressionParseException");
+        } catch (ExpressionParseException e) {
+            assertEquals(4, e.getOffset());
+        }
+    }
+
+    @Test
+    public void testLeftAssociative() {
+        Expression x = new Variable("x");
+        Expression sum = DirectParser.parse("x+x+x");
+        assertEquals(new Plus(new Plus(x, x), x), sum);
+        Expression product = DirectParser.parse("x*x*x");
+        assertEquals(new Times(new Times(x, x), x), product);
+    }
+
+    @Test
+    public void testDeepNesting() {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            input.append('(');
+        }
+        input.append('x');
+        for (int i = 0; i < 100000; i++) {
+            input.append("+1)*2");
+        }
+        Expression parsed = DirectParser.parse(input);
+        assertTrue(parsed instanceof Times);
+        assertEquals(parsed, DirectParser.parse(parsed.toString()));
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCorpusMatchesDirectParser() throws IOException {
+        StringBuilder contents = new StringBuilder();
+        String[] lines = new String[VALID.length + INVALID.length];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = i % 2 == 0 && i / 2 < INVALID.length ? INVALID[i / 2] : VALID[(i + 1) / 2 % VALID.length];
+            contents.append(lines[i]).append(i % 3 == 0 ? "\r\n" : "\n");
+        }
+        contents.append("x*y");
+        Path file = folder.newFile().toPath();
+        Files.write(file, contents.toString().getBytes(StandardCharsets.US_ASCII));
+
+        for (CorpusLoader loader : new CorpusLoader[] {
+                new CorpusLoader(),
+                new CorpusLoader(ForkJoinPool.commonPool(), 1),
+                new CorpusLoader(ForkJoinPool.commonPool(), 7, 40) }) {
+            CorpusLoader.Corpus corpus = loader.load(file);
+            assertEquals(lines.length + 1, corpus.size());
+            int errors = 0;
+            for (int i = 0; i < lines.length; i++) {
+                try {
+                    assertEquals(lines[i], DirectParser.parse(lines[i]), corpus.get(i));
+                } catch (ExpressionParseException e) {
+                    assertNull(lines[i], corpus.get(i));
+                    CorpusLoader.LineError error = corpus.errors().get(errors++);
+                    assertEquals(i + 1, error.getLine());
+                    assertEquals(e.getOffset(), error.getOffset());
+                }
+            }
+            assertEquals(errors, corpus.errors().size());
+            assertEquals(DirectParser.parse("x*y"), corpus.get(lines.length));
+        }
+    }
+
+    @Test(expected=IOException.class)
+    public void testCorpusLineLongerThanRegion() throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, "x+y+z\n1\n".getBytes(StandardCharsets.US_ASCII));
+        new CorpusLoader(ForkJoinPool.commonPool(), 1, 4).load(file);
+    }
+}
@@ -0,0 +1,392 @@
+package expressivo;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/**
+ * Tests for the numeric evaluators of Expression, checked against simplify().
+ */
+public class EvaluationTest {
+
+    // Testing strategy
+    //
+    // CompiledExpression
+    // expression: constant, single variable, sum, product, nested, long chain,
+    //             repeated variable, repeated constant
+    // slot layout: order of first appearance, caller-chosen order, unknown variable
+    // bind(): all variables bound, variable missing
+    //
+    // BytecodeCompiler
+    // same expressions as above, through the generated class
+    // cache: same expression gives the same compiled form
+    // expression too large to generate: falls back to the interpreter
+    //
+    // evaluateColumns()
+    // rows: 0, fewer than one block, several blocks with a partial last block
+    // range: whole input, a sub-range
+    // columns: by slot, by name, missing column
+    //
+    // ParallelEvaluator
+    // columns, bindings, environments and map(); chunk size 1, smaller than input, larger than input;
+    // custom pool; results in input order; negative rows, column shorter than rows; map()
+    // sharing the result cache across threads
+    //
+    // ReverseGradient
+    // same expressions as above; gradient agrees with differentiate(v).simplify(environment)
+    // for every variable; caller-supplied tape reused across bindings; variable used in
+    // several places; single leaf
+    //
+    // DualEvaluator
+    // same expressions as above; unit directions agree with differentiate(v).simplify(env);
+    // mixed direction is the weighted sum of partials; direction naming an absent variable;
+    // columns in blocks and through ParallelEvaluator
+    //
+    // every evaluator must agree with simplify() when all variables are bound
+
+    private static final String[] EXPRESSIONS = {
+        "3", "x", "x+1", "x*y", "(x+1)*(y+2)", "x*x+3*x+9", "2*x*y+(x+1)*(y+2)*x",
+        "x+y+x+y+1.5*y", "(((x)))*((y+0.5)*(x+2))",
+    };
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    /**
+     * @return the value of expression under environment, as computed by simplify()
+     */
+    static double simplified(Expression expression, Map<String, Double> environment) {
+        Expression result = expression.simplify(environment);
+        assertTrue(result.toString(), result.hasValue());
+        return result.getValue();
+    }
+
+    static Map<String, Double> environment(double x, double y) {
+        Map<String, Double> environment = new HashMap<>();
+        environment.put("x", x);
+        environment.put("y", y);
+        return environment;
+    }
+
+    @Test
+    public void testCompiledMatchesSimplify() {
+        Map<String, Double> environment = environment(3.0, 0.25);
+        for (String input : EXPRESSIONS) {
+            Expression expression = Expression.parse(input);
+            CompiledExpression compiled = CompiledExpression.compile(expression);
+            double[] slots = compiled.bind(environment);
+            assertEquals(input, simplified(expression, environment), compiled.evaluate(slots), 0);
+            double[] stack = new double[compiled.stackSize()];
+            assertEquals(input, simplified(expression, environment), compiled.evaluate(slots, stack), 0);
+        }
+    }
+
+    @Test
+    public void testCompiledSlotLayout() {
+        Expression expression = Expression.parse("y*2+x*y");
+        CompiledExpression compiled = CompiledExpression.compile(expression);
+        assertEquals(Arrays.asList("y", "x"), compiled.getVariables());
+        assertEquals(1, compiled.slotOf("x"));
+        assertEquals(-1, compiled.slotOf("z"));
+
+        CompiledExpression ordered = CompiledExpression.compile(expression, Arrays.asList("x", "z"));
+        assertEquals(Arrays.asList("x", "z", "y"), ordered.getVariables());
+        assertEquals(4.0 * 2 + 3.0 * 4.0, ordered.evaluate(new double[] {3.0, 100.0, 4.0}), 0);
+    }
+
+    @Test
+    public void testCompiledLongChain() {
+        StringBuilder input = new StringBuilder("x");
+        for (int i = 0; i < 5000; i++) {
+            input.append("+x");
+        }
+        CompiledExpression compiled = CompiledExpression.compile(DirectParser.parse(input));
+        assertEquals(2, compiled.stackSize());
+        assertEquals(5001 * 2.0, compiled.evaluate(new double[] {2.0}), 0);
+    }
+
+    @Test
+    public void testGeneratedMatchesSimplify() {
+        Map<String, Double> environment = environment(1.5, 7.0);
+        for (String input : EXPRESSIONS) {
+            Expression expression = Expression.parse(input);
+            CompiledExpression compiled = BytecodeCompiler.compile(expression);
+            ExpressionFunction function = compiled.function();
+            assertTrue(function.getClass().getName().startsWith("expressivo.GeneratedExpression$"));
+            assertEquals(input, simplified(expression, environment), function.evaluate(compiled.bind(environment)), 0);
+        }
+    }
+
+    @Test
+    public void testGeneratedCached() {
+        Expression expression = Expression.parse("x*y+2.5");
+        assertSame(BytecodeCompiler.compile(expression), BytecodeCompiler.compile(Expression.parse("x*y+2.5")));
+    }
+
+    @Test
+    public void testGeneratedManySlotsAndConstants() {
+        StringBuilder input = new StringBuilder("0");
+        Map<String, Double> environment = new HashMap<>();
+        String letters = "abcdefghijklmnopqrstuvwxyz";
+        for (int i = 0; i < 200; i++) {
+            String name = "" + letters.charAt(i % 26) + letters.charAt(i / 26);
+            environment.put(name, (double) i);
+            input.append("+").append(name).append("*").append(i + 0.5);
+        }
+        Expression expression = DirectParser.parse(input);
+        CompiledExpression compiled = CompiledExpression.compile(expression);
+        double[] slots = compiled.bind(environment);
+        assertEquals(simplified(expression, environment), compiled.function().evaluate(slots), 0);
+    }
+
+    @Test
+    public void testGeneratedFallbackWhenTooLarge() {
+        StringBuilder input = new StringBuilder("x");
+        for (int i = 0; i < 5000; i++) {
+            input.append("+x*").append(i);
+        }
+        CompiledExpression compiled = CompiledExpression.compile(DirectParser.parse(input));
+        ExpressionFunction function = compiled.function();
+        assertFalse(function.getClass().getName().startsWith("expressivo.GeneratedExpression$"));
+        assertEquals(compiled.evaluate(new double[] {2.0}), function.evaluate(new double[] {2.0}), 0);
+    }
+
+    /**
+     * @return columns x and y of the given length with varied values
+     */
+    static Map<String, double[]> columns(int rows) {
+        double[] x = new double[rows];
+        double[] y = new double[rows];
+        for (int i = 0; i < rows; i++) {
+            x[i] = i * 0.25;
+            y[i] = (i % 13) + 0.5;
+        }
+        Map<String, double[]> columns = new HashMap<>();
+        columns.put("x", x);
+        columns.put("y", y);
+        return columns;
+    }
+
+    @Test
+    public void testColumnsMatchSimplify() {
+        for (int rows : new int[] {0, 1, CompiledExpression.BLOCK - 1, 3 * CompiledExpression.BLOCK + 17}) {
+            Map<String, double[]> columns = columns(rows);
+            for (String input : EXPRESSIONS) {
+                Expression expression = Expression.parse(input);
+                CompiledExpression compiled = CompiledExpression.compile(expression);
+                double[] output = new double[rows];
+                compiled.evaluateColumns(compiled.columnsFor(columns), output);
+                for (int r = 0; r < rows; r += 97) {
+                    Map<String, Double> environment = environment(columns.get("x")[r], columns.get("y")[r]);
+                    assertEquals(input, simplified(expression, environment), output[r], 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testColumnsRange() {
+        CompiledExpression compiled = CompiledExpression.compile(Expression.parse("x*y+1"));
+        double[][] columns = compiled.columnsFor(columns(2000));
+        double[] whole = new double[2000];
+        compiled.evaluateColumns(columns, whole);
+        double[] part = new double[2000];
+        compiled.evaluateColumns(columns, 700, 1300, part);
+        for (int r = 0; r < 2000; r++) {
+            assertEquals(r >= 700 && r < 1300 ? whole[r] : 0.0, part[r], 0);
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testColumnsMissing() {
+        CompiledExpression.compile(Expression.parse("x*z")).columnsFor(columns(10));
+    }
+
+    @Test
+    public void testParallelColumnsInOrder() {
+        Expression expression = Expression.parse("(x+1)*(y+2)*x");
+        CompiledExpression compiled = CompiledExpression.compile(expression);
+        Map<String, double[]> columns = columns(10000);
+        double[] expected = new double[10000];
+        compiled.evaluateColumns(compiled.columnsFor(columns), expected);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int chunkSize : new int[] {1, 333, 20000}) {
+                ParallelEvaluator evaluator = new ParallelEvaluator(pool, chunkSize);
+                assertArrayEquals(expected, evaluator.evaluateColumns(expression, columns, 10000), 0);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testParallelColumnsNegativeRows() {
+        new ParallelEvaluator().evaluateColumns(Expression.parse("x*y"), columns(10), -1);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testParallelColumnsShortColumn() {
+        Map<String, double[]> columns = columns(10);
+        columns.put("y", new double[9]);
+        new ParallelEvaluator().evaluateColumns(Expression.parse("x*y"), columns, 10);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testParallelDerivativeColumnsShortColumn() {
+        Map<String, double[]> columns = columns(10);
+        columns.put("x", new double[3]);
+        new ParallelEvaluator().derivativeColumns(Expression.parse("x*y"), columns,
+                Collections.singletonMap("x", 1.0), 10);
+    }
+
+    @Test
+    public void testParallelBindingsInOrder() {
+        Expression expression = Expression.parse("x*x+3*x*y+9");
+        List<Map<String, Double>> bindings = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            bindings.add(environment(i, 1000 - i));
+        }
+        double[] values = new ParallelEvaluator(ForkJoinPool.commonPool(), 7).evaluateBindings(expression, bindings);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(simplified(expression, bindings.get(i)), values[i], 0);
+        }
+    }
+
+    @Test
+    public void testParallelEnvironmentsInOrder() {
+        Expression expression = Expression.parse("x*x+3*x*y+9");
+        List<Environment> environments = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            environments.add(Environment.of(environment(i, 1000 - i)));
+        }
+        double[] values = new ParallelEvaluator(ForkJoinPool.commonPool(), 7).evaluateEnvironments(expression, environments);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(simplified(expression, environments.get(i).asMap()), values[i], 0);
+        }
+    }
+
+    @Test
+    public void testParallelMapInOrder() {
+        List<Expression> expressions = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            expressions.add(Expression.parse("x*" + i + "+y"));
+        }
+        Map<String, Double> environment = environment(2, 1);
+        List<Expression> simplified = new ParallelEvaluator(ForkJoinPool.commonPool(), 16)
+                .map(expressions, e -> e.simplify(environment));
+        assertEquals(500, simplified.size());
+        for (int i = 0; i < 500; i++) {
+            assertEquals(new Number(2.0 * i + 1), simplified.get(i));
+        }
+    }
+
+    @Test
+    public void testParallelMapSharedCache() {
+        // per-row environments are one-off cache keys; hot derivatives must still be answered
+        // from the shared cache, and results must match the sequential ones
+        Expression hot = Expression.parse("x*x*y+3*x+parallelMap");
+        Variable x = new Variable("x");
+        List<Expression> expressions = new ArrayList<>();
+        for (int i = 0; i < 4000; i++) {
+            expressions.add(i % 2 == 0 ? hot : Expression.parse("x*" + i + "+y"));
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            List<Expression> results = new ParallelEvaluator(pool, 16).map(expressions,
+                    e -> e == hot ? e.differentiate(x) : e.simplify(environment(e.hashCode() & 1023, 1)));
+            for (int i = 0; i < expressions.size(); i++) {
+                Expression e = expressions.get(i);
+                Expression expected = e == hot
+                        ? Traversal.differentiateUncached(e, x)
+                        : Traversal.simplifyUncached(e, Environment.of(environment(e.hashCode() & 1023, 1)));
+                assertEquals(expected, results.get(i));
+            }
+        } finally {
+            pool.shutdown();
+        }
+        long hits = ResultCache.shared().hitCount();
+        hot.differentiate(x);
+        assertEquals(hits + 1, ResultCache.shared().hitCount());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testCompiledUnboundVariable() {
+        CompiledExpression.compile(Expression.parse("x+y")).bind(new HashMap<String, Double>());
+    }
+
+    @Test
+    public void testReverseGradientMatchesDifferentiate() {
+        for (String input : EXPRESSIONS) {
+            Expression expression = Expression.parse(input);
+            ReverseGradient gradient = ReverseGradient.compile(expression);
+            double[] tape = new double[gradient.tapeSize()];
+            double[] partials = new double[gradient.getCompiled().slotCount()];
+            for (int i = 0; i < 5; i++) {
+                Map<String, Double> environment = environment(1.5 + i, 0.25 * i);
+                double[] slots = gradient.getCompiled().bind(environment);
+                assertEquals(input, simplified(expression, environment), gradient.evaluate(slots, partials, tape), 1e-9);
+                for (int s = 0; s < partials.length; s++) {
+                    Variable v = new Variable(gradient.getVariables().get(s));
+                    assertEquals(input + " d/d" + v, simplified(expression.differentiate(v), environment), partials[s], 1e-9);
+                }
+            }
+        }
+        assertArrayEquals(new double[] {27.0}, ReverseGradient.compile(Expression.parse("x*x*x")).gradient(
+                new Environment().bind("x", 3.0)), 0);
+    }
+
+    @Test
+    public void testDualMatchesDifferentiate() {
+        Map<String, Double> direction = environment(2.0, -0.5);
+        direction.put("w", 100.0);
+        for (String input : EXPRESSIONS) {
+            Expression expression = Expression.parse(input);
+            DualEvaluator dual = DualEvaluator.compile(expression);
+            double[] stack = new double[dual.stackSize()];
+            for (int i = 0; i < 5; i++) {
+                Map<String, Double> environment = environment(1.5 + i, 0.25 * i);
+                double[] slots = dual.getCompiled().bind(environment);
+                double expected = 0;
+                for (String name : Arrays.asList("x", "y")) {
+                    double partial = simplified(expression.differentiate(new Variable(name)), environment);
+                    Map<String, Double> unit = new HashMap<>();
+                    unit.put(name, 1.0);
+                    assertEquals(input + " d/d" + name, partial, dual.derivative(slots, dual.directionFor(unit), stack), 1e-9);
+                    assertEquals(input, simplified(expression, environment), stack[0], 1e-9);
+                    expected += direction.get(name) * partial;
+                }
+                assertEquals(input, expected, dual.derivative(Environment.of(environment), direction), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testDualColumnsMatchPointwise() {
+        Expression expression = Expression.parse("(x+1)*(y+2)*x+x*y*y");
+        DualEvaluator dual = DualEvaluator.compile(expression);
+        int rows = 3 * CompiledExpression.BLOCK + 17;
+        Map<String, double[]> columns = columns(rows);
+        Map<String, Double> direction = environment(1.0, 3.0);
+        double[] parallel = new ParallelEvaluator(ForkJoinPool.commonPool(), 100)
+                .derivativeColumns(expression, columns, direction, rows);
+        double[] blocked = new double[rows];
+        dual.derivativeColumns(dual.getCompiled().columnsFor(columns), dual.directionFor(direction), 0, rows, blocked);
+        for (int r = 0; r < rows; r++) {
+            double[] slots = dual.getCompiled().bind(environment(columns.get("x")[r], columns.get("y")[r]));
+            double expected = dual.derivative(slots, dual.directionFor(direction));
+            assertEquals(expected, blocked[r], 1e-9);
+            assertEquals(expected, parallel[r], 1e-9);
+        }
+    }
+}
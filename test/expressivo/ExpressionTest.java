@@ -5,8 +5,16 @@ package expressivo;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.junit.Test;
@@ -35,6 +43,8 @@ public class ExpressionTest {
     // Expression using multiple operations
     // Expression using variables
     // Expression using both variables and numbers
+    // Repeated parses share one compiled grammar
+    // 100k-term chain: equals, toString, appendTo, simplify, differentiate without recursion
     //
     // Variable
     // 
@@ -46,6 +56,47 @@ public class ExpressionTest {
     // hashCode()
     //
     //
+    // Sum, Product
+    // equal to, same hash and same string as the left-folded Plus/Times chain;
+    // parsed for three or more operands; simplify folds leading constants;
+    // differentiate agrees in value with the binary product rule
+    //
+    // simplify() pruning
+    // no variable bound: same object back; bound variable in one operand: the other operand
+    // reused; unbound constants still folded
+    //
+    // SymbolTable, Environment
+    // equal names share an id; simplify(Environment) agrees with simplify(Map) for all, some
+    // and none of the variables bound; rebinding and unbinding; toMap, asMap and of round trip
+    //
+    // ResultCache
+    // repeated differentiate/simplify answered from the cache; environments differing only in
+    // unused variables share an entry; least recently used entry evicted; size 0 disables
+    //
+    // NodeFactory
+    // equal arguments give the same node, different variants do not
+    // number(): small integer, -0.0, negative (rejected by the Number rep invariant)
+    // parsed and differentiated trees share equal subtrees
+    //
+    // FlatExpression
+    // of() and toExpression() round trip; toString, simplify (no bindings, some, all),
+    // differentiate (binary and n-ary products, variable absent) and evaluate agree with
+    // Expression; shared subtrees stored once
+    //
+    // BinaryFormat
+    // round trip through bytes, ByteBuffer and streams; doubles that do not print exactly;
+    // several encodings back to back; shared subtrees written once; 100k-term chain;
+    // truncated input, unknown tag
+    //
+    // gradient(), hessian(), jacobian(), differentiate(v, order)
+    // agree with repeated differentiate(); variables present and absent; order 0, 1, 3;
+    // n-ary products; several expressions in one Jacobian
+    //
+    // normalize()
+    // like terms, products over sums, zero coefficients, substitution,
+    // equal polynomials written differently; equal polynomials over different variables hash
+    // alike; shared subtrees converted once
+    //
     // Number
     //
     // toString()
@@ -58,7 +109,7 @@ public class ExpressionTest {
     //
     // toString()
     // equals()
-    // hashCode()
+    // hashCode(), including operand order and operator sensitivity
     //
     //
     // Times
@@ -155,6 +206,13 @@ public class ExpressionTest {
         Expression tree = Expression.parse("5*");
     }
     
+    @Test
+    public void parserTestSharedParser() {
+        ExpressionParser.warmUp();
+        assertSame(ExpressionParser.get(), ExpressionParser.get());
+        assertEquals(Expression.parse("x*2+1"), Expression.parse("x*2+1"));
+    }
+    
     Variable x = new Variable("x");
     Variable y = new Variable("x");
     Variable z = new Variable("z");
@@ -260,6 +318,18 @@ public class ExpressionTest {
         assertEquals(diff.getRight(),new Number(0));
     }
     
+    @Test
+    public void testOperatorHashCodeOrderAndOperatorSensitive() {
+        Variable a = new Variable("a");
+        Variable b = new Variable("b");
+        int sum = new Plus(a, b).hashCode();
+        assertEquals(sum, new Plus(new Variable("a"), new Variable("b")).hashCode());
+        assertNotEquals(sum, new Plus(b, a).hashCode());
+        assertNotEquals(sum, new Times(a, b).hashCode());
+        assertNotEquals(new Times(a, b).hashCode(), new Times(b, a).hashCode());
+        assertNotEquals(new Plus(new Plus(a, b), a).hashCode(), new Plus(a, new Plus(b, a)).hashCode());
+    }
+    
     Times op3 = new Times(n,n2);
     Times op4 = new Times(n,n2);
     
@@ -305,6 +375,127 @@ public class ExpressionTest {
         assertEquals(diff.toString(),"(8.0*1.0+x*0.0)");
     }
     
+    @Test
+    public void testFactorySharesEqualNodes() {
+        Expression sum = NodeFactory.plus(NodeFactory.variable("x"), NodeFactory.number(2));
+        Expression sameSum = NodeFactory.plus(new Variable("x"), new Number(2.0));
+        assertSame(sum, sameSum);
+        assertNotSame(sum, NodeFactory.times(NodeFactory.variable("x"), NodeFactory.number(2)));
+        assertEquals(sum, new Plus(new Variable("x"), new Number(2)));
+    }
+    
+    @Test
+    public void testFactoryNegativeZero() {
+        Number zero = NodeFactory.number(-0.0);
+        assertEquals(0.0, zero.getValue(), 0);
+        assertEquals("-0.0", zero.toString());
+        assertSame(NodeFactory.number(0), NodeFactory.number(0.0));
+    }
+    
+    @Test(expected=AssertionError.class)
+    public void testFactoryNegative() {
+        // must reach the Number constructor rather than index the small-integer table
+        NodeFactory.number(-1);
+    }
+    
+    @Test
+    public void testParsedSubtreesShared() {
+        Times square = (Times) Expression.parse("(x+1)*(x+1)");
+        assertSame(square.getLeft(), square.getRight());
+        Plus diff = (Plus) square.differentiate(new Variable("x"));
+        assertSame(diff.getLeft(), diff.getRight());
+    }
+    
+    @Test
+    public void testLongChainWithoutStackOverflow() throws IOException {
+        StringBuilder input = new StringBuilder("x");
+        for (int i = 0; i < 100000; i++) {
+            input.append("+x*2");
+        }
+        Expression chain = DirectParser.parse(input);
+        Expression sameChain = DirectParser.parse(input.toString());
+        assertEquals(chain, sameChain);
+        assertFalse(chain.equals(DirectParser.parse(input + "+x")));
+        
+        String printed = chain.toString();
+        assertEquals(1 + 100000 * "(+x*2.0)".length(), printed.length());
+        StringBuilder streamed = new StringBuilder();
+        chain.appendTo(streamed);
+        assertEquals(printed, streamed.toString());
+        
+        Map<String, Double> environment = new HashMap<String, Double>();
+        environment.put("x", 1.5);
+        assertEquals(new Number(1.5 + 100000 * 3.0), chain.simplify(environment));
+        Expression derivative = chain.differentiate(new Variable("x"));
+        assertEquals(new Number(1 + 100000 * 2.0), derivative.simplify(environment));
+    }
+    
+    //Tests normalize()
+    
+    @Test
+    public void testNormalizeCollectsLikeTerms() {
+        Map<String, Double> environment = new HashMap<String, Double>();
+        assertEquals("5.0*x", Expression.parse("x*2+x*3").normalize(environment).toString());
+        assertEquals("3.0*x", Expression.parse("x+x+x").normalize(environment).toString());
+    }
+    
+    @Test
+    public void testNormalizeMultipliesOut() {
+        Map<String, Double> environment = new HashMap<String, Double>();
+        assertEquals("(x*y+x)", Expression.parse("x*(y+1)").normalize(environment).toString());
+        assertEquals("((x*x+2.0*x)+1.0)", Expression.parse("(x+1)*(1+x)").normalize(environment).toString());
+        assertEquals("0.0", Expression.parse("0*x*y").normalize(environment).toString());
+    }
+    
+    @Test
+    public void testNormalizeCanonical() {
+        Map<String, Double> environment = new HashMap<String, Double>();
+        Expression a = Expression.parse("(x+y)*(x+y)").normalize(environment);
+        Expression b = Expression.parse("y*y+x*x+y*x+x*y").normalize(environment);
+        assertEquals(a, b);
+        assertEquals(a, Expression.parse(a.toString()));
+        assertEquals(Polynomial.fromExpression(a), Polynomial.fromExpression(Expression.parse("(y+x)*(y+x)")));
+    }
+    
+    @Test
+    public void testNormalizeSubstitutes() {
+        Map<String, Double> environment = new HashMap<String, Double>();
+        environment.put("x", 3.0);
+        assertEquals("(y+11.0)", Expression.parse("y + 8.0 + x").normalize(environment).toString());
+        assertEquals(new Number(16.0), Expression.parse("(x+1)*(x+1)").normalize(environment));
+    }
+    
+    @Test
+    public void testPolynomialHashAcrossVariables() {
+        Polynomial narrow = Polynomial.fromExpression(Expression.parse("x*y+2*x"));
+        Polynomial wide = Polynomial.fromExpression(Expression.parse("2*x+z*0+y*x"));
+        assertEquals(narrow, wide);
+        assertEquals(narrow.hashCode(), wide.hashCode());
+        assertNotEquals(narrow.hashCode(), Polynomial.fromExpression(Expression.parse("x*y+3*x")).hashCode());
+    }
+    
+    @Test
+    public void testPolynomialSharedSubtrees() {
+        // 2^60 x as a chain of 60 doublings, each node used twice by its parent
+        Expression doubled = new Variable("x");
+        for (int i = 0; i < 60; i++) {
+            doubled = new Plus(doubled, doubled);
+        }
+        assertEquals(Polynomial.fromExpression(new Times(new Number(Math.pow(2, 60)), new Variable("x"))),
+                Polynomial.fromExpression(doubled));
+        
+        // the tenth derivative of x^20 is a DAG far smaller than its printed tree
+        Expression power = Expression.parse("x*x*x*x*x*x*x*x*x*x*x*x*x*x*x*x*x*x*x*x");
+        Expression derivative = power.differentiate(new Variable("x"), 10);
+        double coefficient = 1;
+        for (int k = 11; k <= 20; k++) {
+            coefficient *= k;
+        }
+        Expression expected = Expression.parse("x*x*x*x*x*x*x*x*x*x");
+        assertEquals(Polynomial.fromExpression(new Times(new Number(coefficient), expected)),
+                Polynomial.fromExpression(derivative));
+    }
+    
     //Tests simplify()
     
     @Test
@@ -365,4 +556,443 @@ public class ExpressionTest {
         assertEquals(expression2.simplify(environment),new Number(50.0));
     }
     
+    @Test
+    public void testSumEqualsPlusChain() {
+        Variable a = new Variable("a");
+        Variable b = new Variable("b");
+        Variable c = new Variable("c");
+        Sum sum = new Sum(Arrays.asList(a, b, c));
+        Plus chain = new Plus(new Plus(a, b), c);
+        assertEquals(chain, sum);
+        assertEquals(sum, chain);
+        assertEquals(chain.hashCode(), sum.hashCode());
+        assertEquals(chain.toString(), sum.toString());
+        assertNotEquals(new Plus(a, new Plus(b, c)), sum);
+        assertNotEquals(new Product(Arrays.asList(a, b, c)), sum);
+        assertEquals(new Times(new Times(a, b), c).toString(), new Product(Arrays.asList(a, b, c)).toString());
+    }
+
+    @Test
+    public void testLargeNaryEqualsMixedChain() {
+        final int n = 200000;
+        List<Expression> operands = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            operands.add(i % 3 == 0 ? new Variable("x") : new Number(i % 7));
+        }
+        // a Sum of the first thousand operands, then a Plus chain over the rest
+        Expression plus = new Sum(operands.subList(0, 1000));
+        Expression times = new Product(operands.subList(0, 1000));
+        for (int i = 1000; i < n; i++) {
+            plus = new Plus(plus, operands.get(i));
+            times = new Times(times, operands.get(i));
+        }
+        Sum sum = new Sum(operands);
+        Product product = new Product(operands);
+        assertEquals(sum, plus);
+        assertEquals(plus, sum);
+        assertEquals(product, times);
+        assertEquals(times, product);
+        assertNotEquals(sum, times);
+        
+        List<Expression> changed = new ArrayList<>(operands);
+        changed.set(1, new Variable("y"));
+        assertNotEquals(new Sum(changed), plus);
+        assertNotEquals(new Product(changed), product);
+    }
+
+    @Test
+    public void testParseNary() {
+        Expression sum = Expression.parse("a+b+c+d");
+        assertTrue(sum instanceof Sum);
+        assertEquals(4, ((Sum) sum).getTerms().size());
+        assertTrue(Expression.parse("a*b*c") instanceof Product);
+        assertTrue(Expression.parse("a+b") instanceof Plus);
+        assertEquals(sum, Expression.parse("((a+b)+c)+d"));
+    }
+
+    @Test
+    public void testNarySimplifyDifferentiate() {
+        Map<String, Double> environment = new HashMap<String, Double>();
+        environment.put("x", 2.0);
+        assertEquals("((y+1.0)+2.0)", Expression.parse("y+1+x").simplify(environment).toString());
+        assertEquals("(5.0+y)", Expression.parse("2+3+y").simplify(environment).toString());
+        Expression product = Expression.parse("x*y*x*3");
+        environment.put("y", 5.0);
+        Expression derivative = product.differentiate(new Variable("x"));
+        // d/dx 3x^2y = 6xy = 60 at x=2, y=5
+        assertEquals(new Number(60.0), derivative.simplify(environment));
+        Expression constant = Expression.parse("y*z*3").differentiate(new Variable("x"));
+        assertEquals(new Times(new Times(new Variable("y"), new Variable("z")), new Number(3))
+                .differentiate(new Variable("x")).toString(), constant.toString());
+        environment.put("z", 7.0);
+        assertEquals(new Number(0), constant.simplify(environment));
+    }
+
+    @Test
+    public void testResultCacheHits() {
+        ResultCache cache = ResultCache.shared();
+        Expression expression = Expression.parse("x*x*y+3*x+cacheHits");
+        Variable x = new Variable("x");
+        long hits = cache.hitCount();
+        Expression derivative = expression.differentiate(x);
+        assertSame(derivative, expression.differentiate(x));
+        assertSame(derivative, Expression.parse("x*x*y+3*x+cacheHits").differentiate(x));
+        assertEquals(hits + 2, cache.hitCount());
+
+        Map<String, Double> environment = new HashMap<String, Double>();
+        environment.put("x", 2.0);
+        Expression simplified = expression.simplify(environment);
+        environment.put("unused", 1.0);
+        assertSame(simplified, expression.simplify(environment));
+        environment.put("y", 1.0);
+        assertNotSame(simplified, expression.simplify(environment));
+    }
+
+    @Test
+    public void testResultCacheEqualFormsAgree() {
+        ResultCache cache = ResultCache.shared();
+        Variable x = new Variable("x");
+        Expression product = new Product(Arrays.asList(x, x, x));
+        Expression chain = new Times(new Times(x, x), x);
+        assertEquals(product, chain);
+
+        cache.clear();
+        Expression productFirst = product.differentiate(x);
+        Expression chainSecond = chain.differentiate(x);
+        cache.clear();
+        Expression chainFirst = chain.differentiate(x);
+        Expression productSecond = product.differentiate(x);
+        assertEquals(productFirst, chainFirst);
+        assertEquals(productFirst.toString(), chainFirst.toString());
+        assertEquals(productFirst.toString(), chainSecond.toString());
+        assertEquals(chainFirst.toString(), productSecond.toString());
+
+        cache.clear();
+        String cold = Commands.differentiate("x*x*x", "x");
+        assertEquals(cold, Commands.differentiate("x*x*x", "x"));
+        cache.clear();
+        chain.differentiate(x);
+        assertEquals(cold, Commands.differentiate("x*x*x", "x"));
+    }
+
+    @Test
+    public void testResultCacheScanResistant() {
+        ResultCache cache = new ResultCache(8);
+        Variable x = new Variable("x");
+        List<Plus> hot = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            hot.add(new Plus(x, new Number(i)));
+            for (int k = 0; k < 3; k++) {
+                cache.differentiate(hot.get(i), x);
+            }
+        }
+        // a thousand keys used once each, like simplify() with a new environment per row, with
+        // each hot key used again every 40 rows; a plain LRU of 8 entries would evict them
+        long hits = cache.hitCount();
+        for (int i = 0; i < 1000; i++) {
+            cache.simplify(hot.get(0), Environment.of(Collections.singletonMap("x", (double) i)));
+            if (i % 10 == 9) {
+                cache.differentiate(hot.get(i / 10 % hot.size()), x);
+            }
+        }
+        assertEquals(8, cache.size());
+        assertEquals(hits + 100, cache.hitCount());
+    }
+    
+    @Test
+    public void testResultCacheConcurrent() throws InterruptedException {
+        final ResultCache cache = new ResultCache(64);
+        final Variable x = new Variable("x");
+        final Expression hot = Expression.parse("x*x*y+3*x");
+        final Expression expected = Traversal.differentiateUncached(hot, x);
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 2000; i++) {
+                        assertEquals(expected, cache.differentiate((Operator) hot, x));
+                        Environment row = Environment.of(Collections.singletonMap("y", (double) (thread * 2000 + i)));
+                        assertEquals(Traversal.simplifyUncached(hot, row), cache.simplify((Operator) hot, row));
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.emptyList(), failures);
+        assertTrue(cache.size() <= 64);
+        assertEquals(16000, cache.hitCount() + cache.missCount());
+        long hits = cache.hitCount();
+        cache.differentiate((Operator) hot, x);
+        assertEquals(hits + 1, cache.hitCount());
+    }
+    
+    @Test
+    public void testResultCacheEviction() {
+        ResultCache cache = new ResultCache(2);
+        Variable x = new Variable("x");
+        Plus a = new Plus(x, new Number(1));
+        Plus b = new Plus(x, new Number(2));
+        Plus c = new Plus(x, new Number(3));
+        cache.differentiate(a, x);
+        cache.differentiate(b, x);
+        cache.differentiate(a, x);
+        cache.differentiate(c, x);
+        // c was asked for no more often than the entry it would replace, so it is not admitted
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.evictionCount());
+        cache.differentiate(a, x);
+        cache.differentiate(b, x);
+        assertEquals(3, cache.hitCount());
+        assertEquals(3, cache.missCount());
+        
+        // once c is asked for more often than the least used entry, it replaces that entry
+        cache.differentiate(c, x);
+        cache.differentiate(c, x);
+        assertEquals(3, cache.evictionCount());
+        long hits = cache.hitCount();
+        cache.differentiate(c, x);
+        cache.differentiate(a, x);
+        assertEquals(hits + 2, cache.hitCount());
+        cache.differentiate(b, x);
+        assertEquals(6, cache.missCount());
+        assertEquals(2, cache.size());
+
+        cache.setMaximumSize(0);
+        assertEquals(0, cache.size());
+        assertEquals(new Plus(new Number(1), new Number(0)), cache.differentiate(a, x));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testSimplifyReturnsUntouchedSubtrees() {
+        Map<String, Double> environment = new HashMap<String, Double>();
+        environment.put("z", 2.0);
+        environment.put("w", 1.0);
+        Expression expression = Expression.parse("(x+y*3)*(z+1)");
+        assertSame(expression, expression.simplify(new HashMap<String, Double>()));
+        Expression untouched = ((Times) expression).getLeft();
+        assertSame(untouched, untouched.simplify(environment));
+        Expression simplified = expression.simplify(environment);
+        assertEquals("(x+y*3.0)*3.0", simplified.toString());
+        assertSame(untouched, ((Times) simplified).getLeft());
+        assertEquals("x*5.0", Expression.parse("x*(2+3)").simplify(environment).toString());
+    }
+
+    @Test
+    public void testEnvironmentMatchesMap() {
+        assertEquals(new Variable("x").getId(), SymbolTable.id("x"));
+        assertEquals("x", SymbolTable.name(new Variable("x").getId()));
+        assertEquals(-1, SymbolTable.find("neverUsedAnywhere"));
+
+        Expression expression = Expression.parse("x*x*y+3*x+z");
+        Map<String, Double> map = new HashMap<String, Double>();
+        Environment environment = new Environment();
+        assertEquals(expression.simplify(map), expression.simplify(environment));
+        map.put("x", 2.0);
+        environment.bind("x", 2.0);
+        assertEquals(expression.simplify(map), expression.simplify(environment));
+        map.put("y", 0.5);
+        map.put("z", 4.0);
+        environment.bind(new Variable("y"), 0.5).bind("z", 4.0);
+        assertEquals(new Number(12.0), expression.simplify(environment));
+        assertEquals(map, environment.toMap());
+        assertEquals(map, environment.asMap());
+        assertEquals(Double.valueOf(0.5), environment.asMap().get("y"));
+        assertNull(environment.asMap().get("neverUsedAnywhere"));
+        assertEquals(environment, Environment.of(map));
+
+        environment.bind("x", 1.0).unbind(SymbolTable.id("z"));
+        assertFalse(environment.isBound(SymbolTable.id("z")));
+        assertEquals("(3.5+z)", expression.simplify(environment).toString());
+    }
+    
+    @Test
+    public void testFlatMatchesExpression() {
+        String[] inputs = {
+            "3", "x", "x+1", "x*y", "2*x*y+(x+1)*(y+2)*x", "x+y+x+y+1.5*y", "1+2+x*3*4",
+            "(x*y*z)+(y+2)*(z+3)*(x+1)*4",
+        };
+        Environment none = new Environment();
+        Environment some = new Environment().bind("x", 2.0);
+        Environment all = new Environment().bind("x", 2.0).bind("y", 0.5).bind("z", 3.0);
+        Variable x = new Variable("x");
+        Variable w = new Variable("w");
+        for (String input : inputs) {
+            Expression expression = Expression.parse(input);
+            FlatExpression flat = FlatExpression.of(expression);
+            assertEquals(input, expression, flat.toExpression());
+            assertEquals(input, expression.toString(), flat.toString());
+            for (Environment environment : Arrays.asList(none, some, all)) {
+                assertEquals(input, expression.simplify(environment), flat.simplify(environment).toExpression());
+            }
+            assertEquals(input, expression.simplify(all).getValue(), flat.evaluate(all), 0);
+            assertEquals(input, expression.differentiate(x), flat.differentiate(x).toExpression());
+            assertEquals(input, expression.differentiate(w), flat.differentiate(w).toExpression());
+            assertEquals(input, expression.differentiate(x).toString(), flat.differentiate(x).toString());
+        }
+    }
+    
+    @Test
+    public void testFlatSharesSubtrees() {
+        Expression square = Expression.parse("(x+1)*(x+1)");
+        // x, 1, x+1 and the product
+        assertEquals(4, FlatExpression.of(square).size());
+        StringBuilder input = new StringBuilder("x");
+        for (int i = 0; i < 100000; i++) {
+            input.append("*x+").append(i % 10);
+        }
+        Expression chain = DirectParser.parse(input);
+        FlatExpression flat = FlatExpression.of(chain);
+        assertEquals(chain, flat.toExpression());
+        assertEquals(chain.toString(), flat.toString());
+    }
+    
+    @Test
+    public void testBinaryRoundTrip() throws IOException {
+        Expression exact = new Plus(new Number(0.1 + 0.2), new Times(new Variable("x"), new Number(1e-300)));
+        Expression[] expressions = {
+            new Number(3), new Variable("Foo"), exact, Expression.parse("2*x*y+(x+1)*(y+2)*x"),
+            Expression.parse("a+b+c*d*e"),
+        };
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        for (Expression expression : expressions) {
+            assertEquals(expression, BinaryFormat.fromBytes(BinaryFormat.toBytes(expression)));
+            BinaryFormat.write(expression, stream);
+            BinaryFormat.write(expression, buffer);
+        }
+        assertEquals(0.1 + 0.2, ((Plus) BinaryFormat.fromBytes(BinaryFormat.toBytes(exact))).getLeft().getValue(), 0);
+        buffer.flip();
+        ByteArrayInputStream in = new ByteArrayInputStream(stream.toByteArray());
+        for (Expression expression : expressions) {
+            assertEquals(expression, BinaryFormat.read(buffer));
+            assertEquals(expression, BinaryFormat.read(in));
+        }
+        assertFalse(buffer.hasRemaining());
+        assertEquals(-1, in.read());
+    }
+    
+    @Test
+    public void testBinarySharedAndDeep() {
+        Expression derivative = Expression.parse("(x*x*x*y+1)*(x*x*x*y+1)*x").differentiate(new Variable("x"));
+        byte[] bytes = BinaryFormat.toBytes(derivative);
+        assertTrue(bytes.length < derivative.toString().length());
+        assertEquals(derivative, BinaryFormat.fromBytes(bytes));
+        
+        StringBuilder input = new StringBuilder("x");
+        for (int i = 0; i < 100000; i++) {
+            input.append("*x+").append(i % 10);
+        }
+        Expression chain = DirectParser.parse(input);
+        assertEquals(chain, BinaryFormat.fromBytes(BinaryFormat.toBytes(chain)));
+    }
+    
+    @Test
+    public void testBinaryInvalid() {
+        byte[] bytes = BinaryFormat.toBytes(Expression.parse("x*y+1"));
+        for (int length = 0; length < bytes.length; length++) {
+            try {
+                BinaryFormat.fromBytes(Arrays.copyOf(bytes, length));
+                fail("expected truncated input of length " + length + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        try {
+            BinaryFormat.fromBytes(new byte[] { BinaryFormat.FORMAT_VERSION, 0, 9 });
+            fail("expected unknown tag to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("tag"));
+        }
+    }
+    
+    @Test
+    public void testBinaryCorrupt() {
+        final byte v = BinaryFormat.FORMAT_VERSION;
+        final byte[] huge = { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07 };
+        List<byte[]> corrupt = new ArrayList<>();
+        // 2^31-1 variables, a 2^31-1 byte name, and a 2^31-1 operand sum in a few bytes
+        corrupt.add(concat(new byte[] { v }, huge));
+        corrupt.add(concat(new byte[] { v, 1 }, huge, new byte[] { 'x' }));
+        corrupt.add(concat(new byte[] { v, 0, 2 }, huge));
+        corrupt.add(new byte[] { v, 1, 0, 1, 0 });
+        corrupt.add(new byte[] { v, 1, 2, 'x', '1', 1, 0 });
+        corrupt.add(new byte[] { v, 0, 4, 0 });
+        corrupt.add(new byte[] { v, 0, 2, 2, 1, 0 });
+        for (double value : new double[] { -1.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY }) {
+            corrupt.add(ByteBuffer.allocate(11).put(v).put((byte) 0).put((byte) 0).putDouble(value).array());
+        }
+        for (byte[] bytes : corrupt) {
+            try {
+                BinaryFormat.fromBytes(bytes);
+                fail("expected " + Arrays.toString(bytes) + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        assertEquals("-0.0", BinaryFormat.fromBytes(
+                ByteBuffer.allocate(11).put(v).put((byte) 0).put((byte) 0).putDouble(-0.0).array()).toString());
+    }
+    
+    @Test
+    public void testBinaryTruncatedStream() throws IOException {
+        byte[] bytes = BinaryFormat.toBytes(Expression.parse("x*y+1.5"));
+        for (int length = 0; length < bytes.length; length++) {
+            try {
+                BinaryFormat.read(new ByteArrayInputStream(Arrays.copyOf(bytes, length)));
+                fail("expected truncated stream of length " + length + " to be rejected");
+            } catch (EOFException e) {
+                // expected
+            }
+        }
+        try {
+            BinaryFormat.read(new ByteArrayInputStream(concat(new byte[] { BinaryFormat.FORMAT_VERSION },
+                    new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07 })));
+            fail("expected a stream ending inside the variable table to be rejected");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+    
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+    
+    @Test
+    public void testGradientAndHessianMatchDifferentiate() {
+        List<Variable> variables = Arrays.asList(new Variable("x"), new Variable("y"), new Variable("w"));
+        List<Expression> expressions = Arrays.asList(
+                Expression.parse("3"), Expression.parse("x"), Expression.parse("x*x*y+(x+1)*(y+2)"),
+                Expression.parse("x*y*x*y*2+x*y"));
+        for (Expression expression : expressions) {
+            List<Expression> gradient = expression.gradient(variables);
+            List<List<Expression>> hessian = expression.hessian(variables);
+            for (int i = 0; i < variables.size(); i++) {
+                Expression derivative = expression.differentiate(variables.get(i));
+                assertEquals(derivative, gradient.get(i));
+                for (int j = 0; j < variables.size(); j++) {
+                    assertEquals(derivative.differentiate(variables.get(j)), hessian.get(i).get(j));
+                }
+            }
+            assertEquals(expression, expression.differentiate(variables.get(0), 0));
+            assertEquals(expression.differentiate(variables.get(0)).differentiate(variables.get(0)).differentiate(variables.get(0)),
+                    expression.differentiate(variables.get(0), 3));
+        }
+        List<List<Expression>> jacobian = Expression.jacobian(expressions, variables);
+        assertEquals(expressions.size(), jacobian.size());
+        for (int i = 0; i < expressions.size(); i++) {
+            assertEquals(expressions.get(i).gradient(variables), jacobian.get(i));
+        }
+    }
 }